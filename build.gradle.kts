@@ -2,6 +2,7 @@ plugins {
 	java
 	id("org.springframework.boot") version "3.4.0"
 	id("io.spring.dependency-management") version "1.1.6"
+	id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.spinningnoodle.mail"
@@ -31,12 +32,16 @@ dependencies {
 	implementation("org.springframework.ai:spring-ai-ollama-spring-boot-starter")
 	implementation("org.springframework.boot:spring-boot-starter-webflux")
 	implementation("org.springframework.boot:spring-boot-starter-web")
+	implementation("org.springframework.boot:spring-boot-starter-actuator")
+	runtimeOnly("io.micrometer:micrometer-registry-prometheus")
 
-	implementation("org.jsoup:jsoup:1.18.2")
+	implementation("org.roaringbitmap:RoaringBitmap:1.3.0")
 
 	compileOnly("org.projectlombok:lombok")
 	annotationProcessor("org.projectlombok:lombok")
 	testImplementation("org.springframework.boot:spring-boot-starter-test")
+	testImplementation("org.jsoup:jsoup:1.18.2")
+	testImplementation("com.icegreen:greenmail-junit5:2.1.2")
 	testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
@@ -49,3 +54,34 @@ dependencyManagement {
 tasks.withType<Test> {
 	useJUnitPlatform()
 }
+
+tasks.test {
+	useJUnitPlatform {
+		excludeTags("harness")
+	}
+}
+
+// ./gradlew harness -Pharness.messages=2000 -Pharness.latency=50; see PipelineThroughputHarness
+tasks.register<Test>("harness") {
+	description = "Runs the end-to-end throughput harness against an embedded IMAP server and a simulated model."
+	group = "verification"
+	testClassesDirs = sourceSets.test.get().output.classesDirs
+	classpath = sourceSets.test.get().runtimeClasspath
+	useJUnitPlatform {
+		includeTags("harness")
+	}
+	systemProperties(project.properties.filterKeys { it.startsWith("harness.") })
+	testLogging {
+		showStandardStreams = true
+	}
+}
+
+// ./gradlew jmh; results are kept per version in build/reports/jmh to compare releases
+jmh {
+	warmupIterations = 3
+	iterations = 5
+	fork = 1
+	profilers = listOf("gc")
+	resultFormat = "JSON"
+	resultsFile = layout.buildDirectory.file("reports/jmh/results-${project.version}.json")
+}
@@ -0,0 +1,63 @@
+package com.spinningnoodle.mail.organizer.benchmark;
+
+import com.spinningnoodle.mail.organizer.model.ClassifierConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Category identification from chat model replies, and rendering the category descriptions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ClassifierConfigurationBenchmark {
+
+	@Param({"short", "reasoning"})
+	public String reply;
+
+	private ClassifierConfiguration configuration;
+	private String response;
+
+	@Setup
+	public void setUp() {
+		Map<String, String> descriptions = new LinkedHashMap<>();
+		descriptions.put("Spam", "Unsolicited or irrelevant emails typically sent in bulk");
+		descriptions.put("Flyer", "Email that include sales, percent off, price drops");
+		descriptions.put("Fundraiser", "Emails that ask for donations or contributions to a political campaign");
+		descriptions.put("Newsletter", "Regularly sent emails that provide updates, articles, or news");
+		descriptions.put("Order", "Email contains order number information, or purchase information");
+		descriptions.put("Travel", "Bookings, boarding passes and itineraries");
+		configuration = new ClassifierConfiguration();
+		configuration.setDescriptions(descriptions);
+		response = "short".equals(reply)
+				? "category:Newsletter"
+				: "<think>" + MimeCorpus.words(new Random(7), 400) + "</think>\nThis looks like a regular update. category:Newsletter";
+	}
+
+	@Benchmark
+	public String identify() {
+		return configuration.identify(response);
+	}
+
+	@Benchmark
+	public Optional<String> identifyStrictly() {
+		return configuration.identifyStrictly(response);
+	}
+
+	@Benchmark
+	public String forPrompt() {
+		return configuration.forPrompt();
+	}
+}
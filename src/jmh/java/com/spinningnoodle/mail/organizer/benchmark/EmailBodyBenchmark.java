@@ -0,0 +1,43 @@
+package com.spinningnoodle.mail.organizer.benchmark;
+
+import com.spinningnoodle.mail.organizer.model.BodyLimits;
+import com.spinningnoodle.mail.organizer.model.Email;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Body extraction through {@link Email#withBody(BodyLimits)}, including MIME parsing, for each shape of message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EmailBodyBenchmark {
+
+	@Param({"PLAIN", "LARGE_HTML", "NESTED_MULTIPART", "ATTACHMENTS"})
+	public MimeCorpus.Kind kind;
+
+	@Param({"unlimited", "default"})
+	public String limits;
+
+	private byte[] bytes;
+	private BodyLimits bodyLimits;
+
+	@Setup
+	public void setUp() throws Exception {
+		bytes = MimeCorpus.generate(kind, 42);
+		bodyLimits = "unlimited".equals(limits) ? BodyLimits.UNLIMITED : new BodyLimits(16 * 1024, 1000);
+	}
+
+	@Benchmark
+	public String withBody() throws Exception {
+		return Email.builder().message(MimeCorpus.parse(bytes)).build().withBody(bodyLimits).body();
+	}
+}
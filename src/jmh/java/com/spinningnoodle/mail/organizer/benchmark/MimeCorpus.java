@@ -0,0 +1,132 @@
+package com.spinningnoodle.mail.organizer.benchmark;
+
+import jakarta.activation.DataHandler;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.ByteArrayDataSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Generates synthetic, reproducible MIME messages for the benchmarks.
+ */
+public final class MimeCorpus {
+
+	public static final Session SESSION = Session.getInstance(new Properties());
+
+	public enum Kind {
+		PLAIN, LARGE_HTML, NESTED_MULTIPART, ATTACHMENTS
+	}
+
+	private static final String[] WORDS = {"sale", "order", "shipping", "newsletter", "update", "your", "account",
+			"percent", "off", "today", "only", "invoice", "payment", "received", "thank", "you", "for", "the",
+			"meeting", "tomorrow", "donate", "campaign", "unsubscribe", "privacy", "policy", "view", "browser"};
+
+	private MimeCorpus() {
+	}
+
+	/**
+	 * Builds one message of the given kind and returns its RFC822 bytes.
+	 *
+	 * @param kind the shape of the message
+	 * @param seed the seed for the generated words
+	 * @return the serialized message
+	 */
+	public static byte[] generate(Kind kind, long seed) throws MessagingException, IOException {
+		Random random = new Random(seed);
+		MimeMessage message = new MimeMessage(SESSION);
+		message.setFrom(new InternetAddress("deals@shop" + random.nextInt(100) + ".example.com"));
+		message.setSubject("Re: " + words(random, 8));
+		switch (kind) {
+			case PLAIN -> message.setText(words(random, 400), "utf-8");
+			case LARGE_HTML -> message.setContent(html(random, 2_000), "text/html; charset=utf-8");
+			case NESTED_MULTIPART -> {
+				MimeMultipart alternative = new MimeMultipart("alternative");
+				alternative.addBodyPart(text(words(random, 300)));
+				alternative.addBodyPart(htmlPart(html(random, 300)));
+				MimeBodyPart nested = new MimeBodyPart();
+				nested.setContent(alternative);
+				MimeMultipart related = new MimeMultipart("related");
+				related.addBodyPart(nested);
+				related.addBodyPart(attachment(random, "logo.png", "image/png", 8 * 1024, true));
+				message.setContent(related);
+			}
+			case ATTACHMENTS -> {
+				MimeMultipart mixed = new MimeMultipart("mixed");
+				mixed.addBodyPart(text(words(random, 100)));
+				mixed.addBodyPart(attachment(random, "invoice.pdf", "application/pdf", 256 * 1024, false));
+				mixed.addBodyPart(attachment(random, "photo.jpg", "image/jpeg", 512 * 1024, false));
+				message.setContent(mixed);
+			}
+		}
+		message.saveChanges();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		message.writeTo(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Parses serialized bytes into a fresh message, so no parsed content is cached between invocations.
+	 *
+	 * @param bytes the serialized message
+	 * @return the parsed message
+	 */
+	public static MimeMessage parse(byte[] bytes) throws MessagingException {
+		return new MimeMessage(SESSION, new ByteArrayInputStream(bytes));
+	}
+
+	private static MimeBodyPart text(String text) throws MessagingException {
+		MimeBodyPart part = new MimeBodyPart();
+		part.setText(text, "utf-8");
+		return part;
+	}
+
+	private static MimeBodyPart htmlPart(String html) throws MessagingException {
+		MimeBodyPart part = new MimeBodyPart();
+		part.setContent(html, "text/html; charset=utf-8");
+		return part;
+	}
+
+	private static MimeBodyPart attachment(Random random, String name, String type, int size, boolean inline)
+			throws MessagingException {
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		MimeBodyPart part = new MimeBodyPart();
+		part.setDataHandler(new DataHandler(new ByteArrayDataSource(data, type)));
+		part.setFileName(name);
+		part.setDisposition(inline ? MimeBodyPart.INLINE : MimeBodyPart.ATTACHMENT);
+		return part;
+	}
+
+	private static String html(Random random, int paragraphs) {
+		StringBuilder html = new StringBuilder("<!DOCTYPE html><html><head><title>")
+				.append(words(random, 5))
+				.append("</title><style>td{padding:0}.btn{color:#fff}</style></head><body><table>");
+		for (int i = 0; i < paragraphs; i++) {
+			html.append("<tr><td class=\"btn\" style=\"font-family:Arial\"><a href=\"https://shop.example.com/p?id=")
+					.append(i)
+					.append("&amp;utm_source=mail\">")
+					.append(words(random, 12))
+					.append("</a>&nbsp;&mdash; <b>")
+					.append(random.nextInt(90) + 10)
+					.append("% off</b></td></tr>\n");
+		}
+		return html.append("</table><script>track()</script></body></html>").toString();
+	}
+
+	static String words(Random random, int count) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			text.append(WORDS[random.nextInt(WORDS.length)]).append(i % 15 == 14 ? ".\n" : " ");
+		}
+		return text.toString().trim();
+	}
+}
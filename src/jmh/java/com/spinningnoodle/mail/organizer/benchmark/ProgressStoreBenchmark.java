@@ -0,0 +1,119 @@
+package com.spinningnoodle.mail.organizer.benchmark;
+
+import com.spinningnoodle.mail.organizer.model.Email;
+import com.spinningnoodle.mail.organizer.service.email.ImapConfiguration;
+import com.spinningnoodle.mail.organizer.service.store.MessageIdProgressStore;
+import com.spinningnoodle.mail.organizer.service.store.ProgressStore;
+import com.spinningnoodle.mail.organizer.service.store.ProgressStoreConfiguration;
+import com.spinningnoodle.mail.organizer.service.store.UidProgressStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Lookups, batch filtering and commits against progress stores already holding 10k to 1M emails.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProgressStoreBenchmark {
+	private static final int BATCH = 1000;
+
+	@Param({"message-id", "uid"})
+	public String type;
+
+	@Param({"10000", "100000", "1000000"})
+	public int size;
+
+	private Path directory;
+	private ProgressStore store;
+	private ProgressStoreConfiguration configuration;
+	private Email hit;
+	private Email miss;
+	private List<Email> batch;
+	private long next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("progress-store-benchmark");
+		configuration = new ProgressStoreConfiguration();
+		configuration.setPath(directory.resolve("progressStore.txt").toString());
+		configuration.setSyncInterval(Duration.ofHours(1));
+		// fill without syncing every few records
+		configuration.setSyncBatchSize(Integer.MAX_VALUE);
+		ImapConfiguration imapConfiguration = new ImapConfiguration();
+		imapConfiguration.setUsername(directory.resolve("benchmark").toString());
+		store = "uid".equals(type)
+				? new UidProgressStore(imapConfiguration, configuration)
+				: new MessageIdProgressStore(configuration);
+		for (long uid = 1; uid <= size; uid++) {
+			store.process(email(uid));
+		}
+		configuration.setSyncBatchSize(new ProgressStoreConfiguration().getSyncBatchSize());
+		hit = email(size / 2);
+		miss = email(size + 1);
+		// half processed, half new, as after a restart
+		batch = new ArrayList<>(BATCH);
+		for (long uid = size - BATCH / 2 + 1; uid <= size + BATCH / 2; uid++) {
+			batch.add(email(uid));
+		}
+		next = size + BATCH;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		if (store instanceof MessageIdProgressStore messageIdStore) {
+			messageIdStore.close();
+		} else if (store instanceof UidProgressStore uidStore) {
+			uidStore.close();
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public boolean lookupHit() {
+		return store.hasBeenProcessed(hit);
+	}
+
+	@Benchmark
+	public boolean lookupMiss() {
+		return store.hasBeenProcessed(miss);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<Email> unprocessedBatch() {
+		return store.unprocessed(batch);
+	}
+
+	@Benchmark
+	public void commit() {
+		store.process(email(++next));
+	}
+
+	private static Email email(long uid) {
+		return Email.builder()
+				.messageId("<" + uid + ".benchmark@mail.example.com>")
+				.uid(uid)
+				.uidValidity(1)
+				.build();
+	}
+}
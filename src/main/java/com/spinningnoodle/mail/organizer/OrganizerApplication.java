@@ -5,8 +5,11 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.web.client.RestClientCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 import java.time.Duration;
+import java.util.concurrent.Executors;
 
 @SpringBootApplication
 public class OrganizerApplication {
@@ -27,4 +30,13 @@ public class OrganizerApplication {
                     .build();
         };
     }
+
+    /**
+     * Scheduler for the blocking pipeline stages (IMAP fetch, body parsing, LLM calls, moves).
+     * Each task gets its own virtual thread, so concurrency is bounded by the pipeline settings alone.
+     */
+    @Bean(destroyMethod = "dispose")
+    public Scheduler workerScheduler() {
+        return Schedulers.fromExecutorService(Executors.newVirtualThreadPerTaskExecutor(), "worker");
+    }
 }
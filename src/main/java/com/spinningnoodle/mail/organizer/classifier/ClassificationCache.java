@@ -0,0 +1,271 @@
+package com.spinningnoodle.mail.organizer.classifier;
+
+import com.spinningnoodle.mail.organizer.model.ClassifierConfiguration;
+import com.spinningnoodle.mail.organizer.model.Email;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Bounded LRU cache of classification results in front of the chat model.
+ * Entries are keyed by a fingerprint of the sender domain, the normalized subject and the classifier
+ * configuration version, so repeated bulk mail from the same sender is only sent to the LLM once.
+ * When a path is configured, entries are also appended to a file and loaded again on the next start. The file is
+ * kept open, and rewritten with only the live entries once it holds too many lines that are stale.
+ */
+@Slf4j
+@Component
+public class ClassificationCache {
+    private static final Pattern REPLY_PREFIX = Pattern.compile("^((re|fw|fwd|aw|wg)\\s*:\\s*)+");
+    private static final Pattern DATE = Pattern.compile(
+            "\\b(\\d{1,4}[-/.]\\d{1,2}[-/.]\\d{1,4}"
+                    + "|(jan|feb|mar|apr|may|jun|jul|aug|sep|sept|oct|nov|dec)[a-z]*\\.?\\s+\\d{1,2}(st|nd|rd|th)?(,?\\s+\\d{4})?"
+                    + "|\\d{1,2}(st|nd|rd|th)?\\s+(jan|feb|mar|apr|may|jun|jul|aug|sep|sept|oct|nov|dec)[a-z]*\\.?(\\s+\\d{4})?)\\b");
+    // order, invoice and tracking numbers: anything with a digit in it, optionally prefixed by #
+    private static final Pattern NUMBER = Pattern.compile("#?\\b[\\w-]*\\d[\\w-]*\\b");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+
+    private final ClassifierConfiguration.Cache configuration;
+    private final String version;
+    private final Path path;
+    private final Map<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    // guarded by entries
+    private FileChannel channel;
+    private long linesInFile;
+
+    public ClassificationCache(ClassifierConfiguration classifierConfiguration, MeterRegistry registry) throws IOException {
+        this.configuration = classifierConfiguration.getCache();
+        this.version = classifierConfiguration.version();
+        this.path = configuration.getPath() == null ? null : Path.of(configuration.getPath());
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > configuration.getMaxEntries()) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        load();
+        if (configuration.isEnabled() && path != null) {
+            channel = open();
+            if (linesInFile > entries.size()) {
+                compact();
+            }
+        }
+        FunctionCounter.builder("organizer.cache.requests", this, ClassificationCache::hits)
+                .tag("result", "hit").register(registry);
+        FunctionCounter.builder("organizer.cache.requests", this, ClassificationCache::misses)
+                .tag("result", "miss").register(registry);
+        FunctionCounter.builder("organizer.cache.evictions", this, ClassificationCache::evictions).register(registry);
+        Gauge.builder("organizer.cache.size", this, ClassificationCache::size).register(registry);
+    }
+
+    /**
+     * Computes the cache key of an email. An email whose subject normalizes to nothing, e.g. a missing subject,
+     * a bare "Re:" or only numbers, is not cached, or all such mail from a domain like gmail.com would share one
+     * category.
+     *
+     * @param email the email
+     * @return the fingerprint of its sender domain, normalized subject and the configuration version, or null when
+     * the email is not cached
+     */
+    public String fingerprint(Email email) {
+        final var subject = normalizeSubject(email.subject());
+        if (subject.isEmpty()) {
+            return null;
+        }
+        return senderDomain(email.sender()) + "|" + subject + "|" + version;
+    }
+
+    static String senderDomain(String sender) {
+        if (sender == null) {
+            return "";
+        }
+        int at = sender.lastIndexOf('@');
+        return sender.substring(at + 1).toLowerCase(Locale.ROOT);
+    }
+
+    static String normalizeSubject(String subject) {
+        if (subject == null) {
+            return "";
+        }
+        String normalized = subject.toLowerCase(Locale.ROOT).strip();
+        normalized = REPLY_PREFIX.matcher(normalized).replaceFirst("");
+        normalized = DATE.matcher(normalized).replaceAll(" ");
+        normalized = NUMBER.matcher(normalized).replaceAll(" ");
+        return SPACES.matcher(normalized).replaceAll(" ").strip();
+    }
+
+    /**
+     * Looks up a cached classification.
+     *
+     * @param fingerprint the fingerprint of the email, or null when it is not cached
+     * @return the cached category, if present and not expired
+     */
+    public Optional<String> get(String fingerprint) {
+        if (!configuration.isEnabled() || fingerprint == null) {
+            return Optional.empty();
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(fingerprint);
+            if (entry != null && isExpired(entry)) {
+                entries.remove(fingerprint);
+                entry = null;
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return Optional.empty();
+            }
+            hits.incrementAndGet();
+            return Optional.of(entry.category());
+        }
+    }
+
+    /**
+     * Caches a classification, appending it to the cache file if one is configured.
+     *
+     * @param fingerprint the fingerprint of the email, or null when it is not cached
+     * @param category the category the chat model chose
+     */
+    public void put(String fingerprint, String category) {
+        if (!configuration.isEnabled() || fingerprint == null) {
+            return;
+        }
+        final var entry = new Entry(category, Instant.now());
+        synchronized (entries) {
+            entries.put(fingerprint, entry);
+            if (channel != null) {
+                try {
+                    ByteBuffer buffer = StandardCharsets.UTF_8.encode(line(fingerprint, entry));
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    linesInFile++;
+                    if (linesInFile > configuration.getCompactionRatio() * Math.max(entries.size(), 1)) {
+                        compact();
+                    }
+                } catch (IOException e) {
+                    log.warn("Failed to append to classification cache {}", path, e);
+                }
+            }
+        }
+    }
+
+    private static String line(String fingerprint, Entry entry) {
+        return fingerprint + "\t" + entry.category() + "\t" + entry.created().toEpochMilli() + System.lineSeparator();
+    }
+
+    private boolean isExpired(Entry entry) {
+        return entry.created().plus(configuration.getTtl()).isBefore(Instant.now());
+    }
+
+    /**
+     * Loads the unexpired entries of the cache file, counting its lines.
+     */
+    private void load() throws IOException {
+        if (!configuration.isEnabled() || path == null || !Files.exists(path)) {
+            return;
+        }
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] fields = line.split("\t");
+                if (fields.length != 3 || !fields[0].endsWith("|" + version)) {
+                    continue;
+                }
+                final var entry = new Entry(fields[1], Instant.ofEpochMilli(Long.parseLong(fields[2])));
+                if (!isExpired(entry)) {
+                    entries.put(fields[0], entry);
+                }
+            }
+        }
+        evictions.set(0);
+        linesInFile = lines;
+        log.info("Loaded {} cached classifications from {}", entries.size(), path);
+    }
+
+    /**
+     * Rewrites the cache file with one line per unexpired entry and atomically swaps it in.
+     */
+    private void compact() throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        long lines = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (!isExpired(entry.getValue())) {
+                    writer.write(line(entry.getKey(), entry.getValue()));
+                    lines++;
+                }
+            }
+        }
+        try (FileChannel compactedChannel = FileChannel.open(compacted, StandardOpenOption.WRITE)) {
+            compactedChannel.force(true);
+        }
+        channel.close();
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = open();
+        log.info("Compacted classification cache {} from {} to {} lines", path, linesInFile, lines);
+        linesInFile = lines;
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        synchronized (entries) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private record Entry(String category, Instant created) {}
+}
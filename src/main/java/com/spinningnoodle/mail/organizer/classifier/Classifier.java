@@ -1,64 +1,318 @@
 package com.spinningnoodle.mail.organizer.classifier;
 
+import com.spinningnoodle.mail.organizer.model.BodyLimits;
 import com.spinningnoodle.mail.organizer.model.ClassifierConfiguration;
 import com.spinningnoodle.mail.organizer.model.Email;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.SystemMessage;
 import org.springframework.ai.chat.messages.UserMessage;
-import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.chat.prompt.ChatOptions;
 import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.ai.chat.prompt.PromptTemplate;
-import org.springframework.ai.ollama.OllamaChatModel;
+import org.springframework.ai.ollama.api.OllamaOptions;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 @Slf4j
 @Component
 public class Classifier {
-    private final ChatModel chatModel;
-    private final String templateContent;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String BATCH_FORMAT = "[{\"id\": 1, \"category\": \"<category>\"}]";
+    private final LlmScheduler llm;
+    // rendered once, so every request starts with the same tokens and Ollama can reuse its KV cache
+    private final SystemMessage instructions;
+    private final SystemMessage batchInstructions;
     private final ClassifierConfiguration configuration;
+    private final Scheduler scheduler;
+    private final ClassificationCache cache;
+    private final HeaderRules headerRules;
+    private final LocalClassifier local;
+    private final DuplicateIndex duplicates;
+    private final MeterRegistry registry;
+    private final ClassifierConfiguration.Cascade cascade;
+    // num-ctx, or larger when a full batch would not fit; the same for every request, so the prefix stays cached
+    private final int numCtx;
+    private final ChatOptions defaultModel;
+    private final ChatOptions smallModel;
+    private final ChatOptions largeModel;
 
     /**
      * Constructor to initialize Classifier with chat model and configuration.
-     * Reads the prompt template content from the classpath resource.
+     * Reads the prompt templates from the classpath and renders their static instructions and categories once.
+     * The context window is raised when a full batch would not fit into num-ctx.
      *
-     * @param chatModel the chat model to use for classification
+     * @param llm the scheduler that admits calls to the chat model used for classification
      * @param configuration the classifier configuration
-     * @throws IOException if there is an error reading the prompt template file
+     * @param scheduler the scheduler the blocking chat model calls run on
+     * @param cache the cache of earlier classifications
+     * @param headerRules the rules that classify bulk mail from its headers
+     * @param local the local model trained from earlier chat model answers
+     * @param duplicates the index of threads, mailing lists and campaigns already classified
+     * @param registry the registry that counts which model tier decided
+     * @throws IOException if there is an error reading the prompt template files
+     * @throws IllegalArgumentException if emails are batched with unlimited bodies
      */
-    public Classifier(ChatModel chatModel, ClassifierConfiguration configuration) throws IOException {
-        this.chatModel = chatModel;
+    public Classifier(LlmScheduler llm, ClassifierConfiguration configuration, Scheduler scheduler,
+                      ClassificationCache cache, HeaderRules headerRules, LocalClassifier local,
+                      DuplicateIndex duplicates, MeterRegistry registry) throws IOException {
+        this.llm = llm;
         this.configuration = configuration;
-        Path path = new ClassPathResource("prompt.st").getFile().toPath();
-        templateContent = new String(Files.readAllBytes(path));
+        this.scheduler = scheduler;
+        this.cache = cache;
+        this.headerRules = headerRules;
+        this.local = local;
+        this.duplicates = duplicates;
+        this.registry = registry;
+        this.cascade = configuration.getCascade();
+        this.instructions = new SystemMessage(new PromptTemplate(read("prompt.st")).render(Map.of(
+                "classifier", configuration.forPrompt()
+        )));
+        this.batchInstructions = new SystemMessage(new PromptTemplate(read("batch-prompt.st")).render(Map.of(
+                "classifier", configuration.forPrompt(),
+                "format", BATCH_FORMAT
+        )));
+        this.numCtx = configuration.contextWindow(batchInstructions.getContent());
+        if (numCtx > configuration.getNumCtx()) {
+            log.info("Raising num-ctx from {} to {} to fit batches of {} emails", configuration.getNumCtx(), numCtx,
+                    configuration.getBatchSize());
+        }
+        this.defaultModel = options(null, configuration.getNumPredict());
+        this.smallModel = options(cascade.getSmallModel(), configuration.getNumPredict());
+        this.largeModel = options(cascade.getLargeModel(), configuration.getNumPredict());
+    }
+
+    private static String read(String template) throws IOException {
+        try (InputStream in = new ClassPathResource(template).getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
     }
 
     /**
      * Classifies the given email using the chat model and returns the classification result.
+     * The chat model call blocks, so it runs on the worker scheduler rather than the subscribing thread.
+     * Emails decided by a header rule, matching a cached fingerprint, belonging to a thread, mailing list or
+     * campaign already classified or confidently classified by the local model skip the chat model entirely; the
+     * chat model's answers train the local model. While an email of the same thread or list is being classified,
+     * its answer is awaited and shared.
      *
      * @param email the email to classify
      * @return a Mono emitting the classification result
      */
     public Mono<String> classify(Email email) {
-        PromptTemplate promptTemplate = new PromptTemplate(templateContent);
-        Prompt prompt = promptTemplate.create(Map.of(
-                        "email", email.toString(),
-                        "classifier", configuration.forPrompt()
-                )
-        );
+        final var known = known(email);
+        if (known.isPresent()) {
+            return Mono.just(known.get());
+        }
+        return duplicates.classifyOnce(email, () -> Mono.fromCallable(() -> call(email))
+                .subscribeOn(scheduler)
+                .doOnNext(category -> learn(email, category)));
+    }
+
+    /**
+     * Classifies several emails with a single chat model call, asking for a JSON array of {id, category}.
+     * Emails decided by a header rule or the cache are left out of the prompt, as are emails of the same thread,
+     * mailing list or campaign as an earlier email in the batch, which get its category. Emails missing from the
+     * reply or given an unknown category are classified on their own.
+     *
+     * @param emails the emails to classify
+     * @return a Mono emitting the categories, in the order of the emails
+     */
+    public Mono<List<String>> classify(List<Email> emails) {
+        final var categories = new String[emails.size()];
+        final var pending = new ArrayList<Integer>();
+        // index of the email in the batch whose category a duplicate copies
+        final var copies = new HashMap<Integer, Integer>();
+        for (int i = 0; i < emails.size(); i++) {
+            final var known = known(emails.get(i));
+            if (known.isPresent()) {
+                categories[i] = known.get();
+                continue;
+            }
+            final var email = emails.get(i);
+            final var index = i;
+            pending.stream()
+                    .filter(j -> duplicates.sameGroup(emails.get(j), email))
+                    .findFirst()
+                    .ifPresentOrElse(j -> copies.put(index, j), () -> pending.add(index));
+        }
+        if (pending.isEmpty()) {
+            return Mono.just(Arrays.asList(categories));
+        }
+        return Mono.fromCallable(() -> {
+                    final var answers = pending.size() == 1 ? Map.<Integer, String>of() : callBatch(emails, pending);
+                    for (int i : pending) {
+                        final var email = emails.get(i);
+                        final var category = answers.get(i);
+                        if (category == null) {
+                            log.debug("No usable answer for {} in the batch, classifying it on its own", email.messageId());
+                            categories[i] = call(email);
+                        } else {
+                            categories[i] = cascade.isEnabled() ? settle(email, Optional.of(category)) : category;
+                        }
+                        learn(email, categories[i]);
+                    }
+                    copies.forEach((i, j) -> categories[i] = categories[j]);
+                    return Arrays.asList(categories);
+                })
+                .subscribeOn(scheduler);
+    }
+
+    private void learn(Email email, String category) {
+        cache.put(cache.fingerprint(email), category);
+        duplicates.record(email, category);
+        local.train(email, category);
+    }
+
+    /**
+     * Returns the category when a header rule, a cached fingerprint, an earlier email of the same thread, mailing
+     * list or campaign or the local model already decides the email.
+     *
+     * @param email the email to classify
+     * @return the category, or empty when the chat model has to be asked
+     */
+    private Optional<String> known(Email email) {
+        final var byHeaders = headerRules.match(email);
+        if (byHeaders.isPresent()) {
+            return byHeaders;
+        }
+        final var fingerprint = cache.fingerprint(email);
+        final var cached = cache.get(fingerprint);
+        if (cached.isPresent()) {
+            log.debug("Cache hit for {}: {}", fingerprint, cached.get());
+            return cached;
+        }
+        final var duplicate = duplicates.lookup(email);
+        if (duplicate.isPresent()) {
+            log.debug("{} belongs to a group already classified as {}", email.messageId(), duplicate.get());
+            return duplicate;
+        }
+        return local.classify(email);
+    }
+
+    /**
+     * Asks the chat model about a single email. With the cascade enabled the small model is asked first, and the
+     * large model only when the small model's answer is unclear or in a category it is not trusted with.
+     *
+     * @param email the email to classify
+     * @return the category
+     */
+    private String call(Email email) {
+        if (!cascade.isEnabled()) {
+            return configuration.identify(ask(email, defaultModel));
+        }
+        return settle(email, configuration.identifyStrictly(ask(email, smallModel)));
+    }
+
+    /**
+     * Accepts the small model's answer, or escalates the email to the large model.
+     *
+     * @param email the email to classify
+     * @param answer the category the small model clearly named, if any
+     * @return the category
+     */
+    private String settle(Email email, Optional<String> answer) {
+        if (answer.isPresent() && !cascade.getEscalate().contains(answer.get())) {
+            registry.counter("organizer.cascade.decisions", "tier", "small", "category", answer.get()).increment();
+            return answer.get();
+        }
+        log.debug("Escalating {} to the large model, small model answered {}", email.messageId(), answer.orElse("unclearly"));
+        final var category = configuration.identify(ask(email, largeModel));
+        registry.counter("organizer.cascade.decisions", "tier", "large", "category", category).increment();
+        return category;
+    }
+
+    private String ask(Email email, ChatOptions options) {
+        Prompt prompt = new Prompt(List.of(instructions, new UserMessage(email.toString())), options);
+
+        return llm.call(prompt, email.account()).getResult().getOutput().getContent();
+    }
+
+    /**
+     * Builds the per-request options: keep the model loaded, a fixed context so the cached prefix stays valid,
+     * and only as many generated tokens as the answer needs.
+     *
+     * @param model the model to ask, or null for the model configured for Spring AI
+     * @param numPredict the maximum number of tokens to generate, 0 for no limit
+     * @return the options
+     */
+    private OllamaOptions options(String model, int numPredict) {
+        final var options = OllamaOptions.create()
+                .withKeepAlive(configuration.getKeepAlive())
+                .withNumCtx(numCtx);
+        if (model != null && !model.isBlank()) {
+            options.withModel(model);
+        }
+        if (numPredict > 0) {
+            options.withNumPredict(numPredict);
+        }
+        return options;
+    }
 
-        String llmResponse = chatModel.call(prompt).getResult().getOutput().toString();
-        String mailType = configuration.identify(llmResponse);
-        return Mono.just(mailType);
+    /**
+     * Sends the pending emails in one prompt, using their index in the batch as id.
+     *
+     * @param emails the whole batch
+     * @param pending the indexes of the emails to put in the prompt
+     * @return the category per index, for the ids that were answered with a known category
+     */
+    private Map<Integer, String> callBatch(List<Email> emails, List<Integer> pending) {
+        final var rendered = new StringBuilder();
+        for (int i : pending) {
+            rendered.append("id: ").append(i + 1).append('\n').append(emails.get(i)).append("\n\n");
+        }
+        // the small model answers for the batch; its unclear answers are escalated one by one
+        final var options = options(cascade.isEnabled() ? cascade.getSmallModel() : null,
+                configuration.batchNumPredict(pending.size()));
+        Prompt prompt = new Prompt(List.of(batchInstructions, new UserMessage(rendered.toString())), options);
+
+        // a batch holds the emails of one account, since each account has its own pipeline
+        String llmResponse = llm.call(prompt, emails.get(pending.get(0)).account()).getResult().getOutput().getContent();
+        return parseBatch(llmResponse, pending.size());
+    }
+
+    /**
+     * Parses a reply of the form [{"id": 1, "category": "Spam"}, ...], tolerating text around the array.
+     *
+     * @param llmResponse the chat model reply
+     * @param size the number of emails in the prompt
+     * @return the category per index in the batch; ids that are missing, unknown or malformed are left out
+     */
+    private Map<Integer, String> parseBatch(String llmResponse, int size) {
+        final var answers = new HashMap<Integer, String>();
+        final var start = llmResponse == null ? -1 : llmResponse.indexOf('[');
+        final var end = llmResponse == null ? -1 : llmResponse.lastIndexOf(']');
+        if (start < 0 || end < start) {
+            log.warn("Batch reply holds no JSON array, classifying {} emails on their own", size);
+            return answers;
+        }
+        try {
+            for (JsonNode item : MAPPER.readTree(llmResponse.substring(start, end + 1))) {
+                final var id = item.path("id").asInt(0);
+                configuration.category(item.path("category").asText(null))
+                        .ifPresent(category -> answers.put(id - 1, category));
+            }
+        } catch (JsonProcessingException e) {
+            log.warn("Failed to parse batch reply, classifying {} emails on their own", size, e);
+        }
+        return answers;
     }
 
     /**
@@ -70,6 +324,34 @@ public class Classifier {
         return configuration.isUseBody();
     }
 
+    /**
+     * Checks if the body of this particular email has to be fetched, i.e. neither a header rule nor its thread or
+     * mailing list already decides it.
+     *
+     * @param email the email with its headers fetched
+     * @return true if the body content is needed, false otherwise
+     */
+    public boolean needsBody(Email email) {
+        return needsBody() && headerRules.match(email).isEmpty() && duplicates.byHeaders(email).isEmpty();
+    }
+
+    /**
+     * Returns how much of the body should be downloaded and put into the prompt.
+     *
+     * @return the configured body limits
+     */
+    public BodyLimits bodyLimits() {
+        return configuration.bodyLimits();
+    }
+
+    public int batchSize() {
+        return configuration.getBatchSize();
+    }
+
+    public Duration batchWindow() {
+        return configuration.getBatchWindow();
+    }
+
     public boolean dryRun() {
         return configuration.isDryRun();
     }
@@ -0,0 +1,333 @@
+package com.spinningnoodle.mail.organizer.classifier;
+
+import com.spinningnoodle.mail.organizer.model.ClassifierConfiguration;
+import com.spinningnoodle.mail.organizer.model.Email;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Groups emails that belong together so that only the first of a group is classified and the rest get its
+ * category: replies by the root of their thread (References, else In-Reply-To), mailing list posts by List-Id, and
+ * copies of a bulk campaign by a SimHash of their subject and body text that differs in at most
+ * {@link ClassifierConfiguration.Dedup#getMaxDistance()} bits.
+ * While the first email of a group is still being classified, the others wait for its answer instead of asking too.
+ */
+@Component
+public class DuplicateIndex {
+    private static final Pattern MESSAGE_ID = Pattern.compile("<[^<>\\s]+>");
+    private static final Pattern TOKEN = Pattern.compile("[^\\p{L}\\p{N}]+");
+    // the 64 bit hash is split in 4 bands of 16 bits; two hashes at most 3 bits apart share at least one band
+    private static final int BANDS = 4;
+    private static final int BAND_BITS = 64 / BANDS;
+
+    private final ClassifierConfiguration.Dedup configuration;
+    private final MeterRegistry registry;
+    // guarded by this
+    private final Map<String, String> groups;
+    private final Map<Long, String> hashes;
+    private final Map<Integer, List<Long>> bands = new HashMap<>();
+    private final Map<String, Mono<String>> inFlight = new HashMap<>();
+
+    /**
+     * Constructor to initialize the empty index.
+     *
+     * @param classifierConfiguration the classifier configuration
+     * @param registry the registry copied categories are counted in
+     * @throws IllegalArgumentException if the max distance is more than the bands can find
+     */
+    public DuplicateIndex(ClassifierConfiguration classifierConfiguration, MeterRegistry registry) {
+        this.configuration = classifierConfiguration.getDedup();
+        this.registry = registry;
+        if (configuration.getMaxDistance() > BANDS - 1) {
+            throw new IllegalArgumentException("classifier-configuration.dedup.max-distance " + configuration.getMaxDistance()
+                    + " exceeds " + (BANDS - 1) + ", the most bits the " + BANDS + " bands are sure to find");
+        }
+        final var maxEntries = configuration.getMaxEntries();
+        this.groups = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.hashes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                if (size() > maxEntries) {
+                    unindex(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the category of an email's thread or mailing list, which only needs the fetched headers.
+     *
+     * @param email the email, with its headers fetched
+     * @return the category, or empty when no email of its thread or list has been classified yet
+     */
+    public synchronized Optional<String> byHeaders(Email email) {
+        if (!configuration.isEnabled()) {
+            return Optional.empty();
+        }
+        for (String key : keys(email)) {
+            final var category = groups.get(key);
+            if (category != null) {
+                return Optional.of(category);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Returns the category given to an email of the same thread, mailing list or campaign.
+     *
+     * @param email the email, with its body parsed when the body is used
+     * @return the category, or empty when the email has to be classified
+     */
+    public Optional<String> lookup(Email email) {
+        if (!configuration.isEnabled()) {
+            return Optional.empty();
+        }
+        final var hash = simHash(email);
+        synchronized (this) {
+            for (String key : keys(email)) {
+                final var category = groups.get(key);
+                if (category != null) {
+                    return copied(key.substring(0, key.indexOf(':')), category);
+                }
+            }
+            if (hash != 0) {
+                final var similar = similar(hash);
+                if (similar != null) {
+                    return copied("similar", similar);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Classifies an email unless an email of the same group is being classified right now, in which case its
+     * answer is shared. Should that classification fail, the email is classified on its own.
+     *
+     * @param email the email to classify
+     * @param classification the classification of the email, subscribed to only when no other is in flight
+     * @return a Mono emitting the category
+     */
+    public Mono<String> classifyOnce(Email email, Supplier<Mono<String>> classification) {
+        if (!configuration.isEnabled()) {
+            return classification.get();
+        }
+        final var keys = keys(email);
+        final Mono<String> shared;
+        synchronized (this) {
+            for (String key : keys) {
+                final var leader = inFlight.get(key);
+                if (leader != null) {
+                    registry.counter("organizer.dedup.copies", "group", "in-flight").increment();
+                    return leader.onErrorResume(e -> classification.get());
+                }
+            }
+            final var self = new AtomicReference<Mono<String>>();
+            shared = classification.get()
+                    .doFinally(signal -> release(keys, self.get()))
+                    .cache();
+            self.set(shared);
+            keys.forEach(key -> inFlight.put(key, shared));
+        }
+        return shared;
+    }
+
+    /**
+     * Records the category of a classified email for the rest of its thread, mailing list and campaign.
+     *
+     * @param email the classified email
+     * @param category its category
+     */
+    public void record(Email email, String category) {
+        if (!configuration.isEnabled()) {
+            return;
+        }
+        final var hash = simHash(email);
+        synchronized (this) {
+            keys(email).forEach(key -> groups.put(key, category));
+            if (hash != 0 && hashes.put(hash, category) == null) {
+                for (int band = 0; band < BANDS; band++) {
+                    bands.computeIfAbsent(band(hash, band), b -> new ArrayList<>(1)).add(hash);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells whether two emails share a thread, a mailing list or a campaign.
+     *
+     * @param first an email
+     * @param second another email
+     * @return true if the second email would get the category of the first
+     */
+    public boolean sameGroup(Email first, Email second) {
+        if (!configuration.isEnabled()) {
+            return false;
+        }
+        final var keys = keys(first);
+        if (keys(second).stream().anyMatch(keys::contains)) {
+            return true;
+        }
+        final var hash = simHash(first);
+        final var other = simHash(second);
+        return hash != 0 && other != 0 && Long.bitCount(hash ^ other) <= configuration.getMaxDistance();
+    }
+
+    private synchronized void release(List<String> keys, Mono<String> shared) {
+        keys.forEach(key -> inFlight.remove(key, shared));
+    }
+
+    private Optional<String> copied(String group, String category) {
+        registry.counter("organizer.dedup.copies", "group", group).increment();
+        return Optional.of(category);
+    }
+
+    /**
+     * Computes the keys an email is grouped by: its thread root and its mailing list.
+     *
+     * @param email the email
+     * @return the keys, prefixed by the kind of group
+     */
+    List<String> keys(Email email) {
+        final var keys = new ArrayList<String>(2);
+        if (configuration.isThreads()) {
+            final var root = threadRoot(email);
+            if (root != null) {
+                keys.add("thread:" + root);
+            }
+        }
+        if (configuration.isLists() && email.headers() != null) {
+            final var listId = email.headers().get("List-Id");
+            if (listId != null && !listId.isBlank()) {
+                // List-Id: Some Name <list.example.com>, only the part in brackets identifies the list
+                final var open = listId.lastIndexOf('<');
+                final var close = listId.lastIndexOf('>');
+                final var id = open >= 0 && close > open ? listId.substring(open + 1, close) : listId;
+                keys.add("list:" + id.strip().toLowerCase(Locale.ROOT));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Finds the first message of an email's thread: the first entry of References, else In-Reply-To, else the
+     * email itself, so that a thread's first message and all replies to it share the same root.
+     */
+    static String threadRoot(Email email) {
+        if (email.headers() != null) {
+            for (String header : List.of("References", "In-Reply-To")) {
+                final var value = email.headers().get(header);
+                if (value != null) {
+                    final var matcher = MESSAGE_ID.matcher(value);
+                    if (matcher.find()) {
+                        return matcher.group();
+                    }
+                }
+            }
+        }
+        return email.messageId() == null ? null : email.messageId().strip();
+    }
+
+    /**
+     * Computes the SimHash of an email's subject and body text.
+     *
+     * @param email the email
+     * @return the 64 bit SimHash, or 0 when similarity is turned off or the text is too short to compare
+     */
+    long simHash(Email email) {
+        if (!configuration.isSimilar()) {
+            return 0;
+        }
+        final var weights = new int[64];
+        var tokens = 0;
+        for (String text : new String[]{email.subject(), email.body()}) {
+            if (text == null) {
+                continue;
+            }
+            for (String token : TOKEN.split(text.toLowerCase(Locale.ROOT))) {
+                if (token.length() < 2) {
+                    continue;
+                }
+                tokens++;
+                final var hash = hash(token);
+                for (int bit = 0; bit < 64; bit++) {
+                    weights[bit] += (hash >>> bit & 1) == 1 ? 1 : -1;
+                }
+            }
+        }
+        if (tokens < configuration.getMinTokens()) {
+            return 0;
+        }
+        var simHash = 0L;
+        for (int bit = 0; bit < 64; bit++) {
+            if (weights[bit] > 0) {
+                simHash |= 1L << bit;
+            }
+        }
+        return simHash;
+    }
+
+    private String similar(long hash) {
+        for (int band = 0; band < BANDS; band++) {
+            final var candidates = bands.get(band(hash, band));
+            if (candidates == null) {
+                continue;
+            }
+            for (long candidate : candidates) {
+                if (Long.bitCount(candidate ^ hash) <= configuration.getMaxDistance()) {
+                    return hashes.get(candidate);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void unindex(long hash) {
+        for (int band = 0; band < BANDS; band++) {
+            final var key = band(hash, band);
+            final var candidates = bands.get(key);
+            if (candidates != null) {
+                candidates.remove(Long.valueOf(hash));
+                if (candidates.isEmpty()) {
+                    bands.remove(key);
+                }
+            }
+        }
+    }
+
+    private static int band(long hash, int band) {
+        return band << BAND_BITS | (int) (hash >>> band * BAND_BITS & 0xFFFF);
+    }
+
+    /**
+     * 64 bit FNV-1a, which spreads short tokens over all bits well enough for SimHash.
+     */
+    private static long hash(String token) {
+        var hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            hash ^= token.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
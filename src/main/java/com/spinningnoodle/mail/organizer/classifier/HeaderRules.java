@@ -0,0 +1,63 @@
+package com.spinningnoodle.mail.organizer.classifier;
+
+import com.spinningnoodle.mail.organizer.model.ClassifierConfiguration;
+import com.spinningnoodle.mail.organizer.model.Email;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Classifies obvious bulk mail from its headers alone, so neither the body nor the LLM is needed.
+ */
+@Component
+public class HeaderRules {
+    private final List<CompiledRule> rules;
+
+    /**
+     * Constructor to compile the configured rules, checking that each names a configured category.
+     *
+     * @param configuration the classifier configuration
+     * @throws IllegalArgumentException if a rule names a category missing from the descriptions
+     */
+    public HeaderRules(ClassifierConfiguration configuration) {
+        for (ClassifierConfiguration.HeaderRule rule : configuration.getHeaderRules()) {
+            if (!configuration.category(rule.getCategory()).equals(Optional.ofNullable(rule.getCategory()))) {
+                throw new IllegalArgumentException("Header rule category " + rule.getCategory()
+                        + " is not one of classifier-configuration.descriptions " + configuration.getFolders());
+            }
+        }
+        this.rules = configuration.getHeaderRules().stream()
+                .map(rule -> new CompiledRule(rule.getCategory(), rule.getHeaders().entrySet().stream()
+                        .collect(Collectors.toMap(Map.Entry::getKey, e -> Pattern.compile(e.getValue())))))
+                .toList();
+    }
+
+    /**
+     * Returns the category of the first rule whose header patterns all match the email.
+     *
+     * @param email the email, with its headers fetched
+     * @return the category, or empty when no rule decides
+     */
+    public Optional<String> match(Email email) {
+        if (email.headers() == null) {
+            return Optional.empty();
+        }
+        return rules.stream()
+                .filter(rule -> rule.matches(email.headers()))
+                .map(CompiledRule::category)
+                .findFirst();
+    }
+
+    private record CompiledRule(String category, Map<String, Pattern> headers) {
+        boolean matches(Map<String, String> values) {
+            return headers.entrySet().stream().allMatch(e -> {
+                String value = values.get(e.getKey());
+                return value != null && e.getValue().matcher(value).find();
+            });
+        }
+    }
+}
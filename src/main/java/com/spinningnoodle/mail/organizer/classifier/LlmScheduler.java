@@ -0,0 +1,307 @@
+package com.spinningnoodle.mail.organizer.classifier;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control in front of the chat model.
+ * Concurrency follows AIMD: it grows by one per round of calls while latency stays within the p99 and is cut by
+ * {@link LlmSchedulerConfiguration#getBackoffRatio()} on an error, a timeout or a slow call. Each call gets a
+ * deadline derived from the p99 latency. After consecutive failures a circuit breaker opens; callers then block
+ * in {@link #call(Prompt)} instead of failing, so the pipeline stops requesting and fetching pauses through
+ * backpressure until a probe call succeeds.
+ * When several accounts wait for a call, they are admitted by start-time fair queuing: each call is tagged with
+ * the virtual time its account's previous call finished, advanced by one over the account's weight, and the
+ * smallest tag goes first, so a large mailbox gets its weighted share and no more.
+ */
+@Slf4j
+@Component
+public class LlmScheduler {
+    enum Circuit { CLOSED, HALF_OPEN, OPEN }
+
+    public static final String DEFAULT_ACCOUNT = "default";
+
+    private record Ticket(String account, double start, long sequence) {
+    }
+
+    private final ChatModel chatModel;
+    private final LlmSchedulerConfiguration configuration;
+    private final MeterRegistry registry;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // guarded by lock
+    private final long[] latencies;
+    private int samples;
+    private long p99;
+    private double limit;
+    private int inFlight;
+    private Circuit circuit = Circuit.CLOSED;
+    private long openUntil;
+    private int consecutiveFailures;
+    private boolean probing;
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>(
+            Comparator.comparingDouble(Ticket::start).thenComparingLong(Ticket::sequence));
+    // virtual time at which the last admitted call of each account finishes
+    private final Map<String, Double> finish = new HashMap<>();
+    private double virtualTime;
+    private long sequence;
+    private final Map<String, Double> weights = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> queued = new ConcurrentHashMap<>();
+
+    public LlmScheduler(ChatModel chatModel, LlmSchedulerConfiguration configuration, MeterRegistry registry) {
+        this.chatModel = chatModel;
+        this.configuration = configuration;
+        this.registry = registry;
+        this.latencies = new long[Math.max(configuration.getLatencyWindow(), 1)];
+        this.limit = configuration.getInitialConcurrency();
+        Gauge.builder("organizer.llm.concurrency.limit", this, s -> s.limit).register(registry);
+        Gauge.builder("organizer.llm.in-flight", this, s -> s.inFlight).register(registry);
+        Gauge.builder("organizer.llm.latency.p99", this, s -> s.p99 / 1_000_000.0).baseUnit("milliseconds").register(registry);
+        Gauge.builder("organizer.llm.deadline", this, s -> s.deadline().toMillis()).baseUnit("milliseconds").register(registry);
+        Gauge.builder("organizer.llm.circuit", this, s -> s.circuit.ordinal())
+                .description("0 closed, 1 half open, 2 open").register(registry);
+    }
+
+    /**
+     * Sets the share of the chat model an account gets while other accounts wait too; accounts not set get 1.
+     *
+     * @param account the account name
+     * @param weight its weight, relative to the other accounts
+     */
+    public void weight(String account, double weight) {
+        weights.put(account, weight > 0 ? weight : 1.0);
+    }
+
+    /**
+     * Calls the chat model for the default account.
+     *
+     * @param prompt the prompt
+     * @return the chat model response
+     * @throws RuntimeException the last failure once all attempts have failed
+     */
+    public ChatResponse call(Prompt prompt) {
+        return call(prompt, DEFAULT_ACCOUNT);
+    }
+
+    /**
+     * Calls the chat model once admitted, abandoning the call at its deadline and retrying failed calls up to
+     * {@link LlmSchedulerConfiguration#getMaxAttempts()} times. Blocks while the concurrency limit is reached, the
+     * circuit breaker is open or calls of other accounts are due first.
+     *
+     * @param prompt the prompt
+     * @param account the account the call is made for, or null for the default account
+     * @return the chat model response
+     * @throws RuntimeException the last failure once all attempts have failed
+     */
+    public ChatResponse call(Prompt prompt, String account) {
+        final var name = account == null ? DEFAULT_ACCOUNT : account;
+        RuntimeException failure = null;
+        for (int attempt = 1; attempt <= Math.max(configuration.getMaxAttempts(), 1); attempt++) {
+            final Duration deadline;
+            try {
+                deadline = acquire(name);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the chat model", e);
+            }
+            final var start = System.nanoTime();
+            final Future<ChatResponse> future = executor.submit(() -> chatModel.call(prompt));
+            try {
+                final var response = future.get(deadline.toMillis(), TimeUnit.MILLISECONDS);
+                final var latency = System.nanoTime() - start;
+                succeeded(latency);
+                record(prompt, response, latency);
+                return response;
+            } catch (TimeoutException e) {
+                // virtual threads give up blocking socket reads when interrupted
+                future.cancel(true);
+                failed("timeout");
+                failure = new IllegalStateException("Chat model call exceeded its deadline of " + deadline);
+            } catch (ExecutionException e) {
+                failed("error");
+                failure = e.getCause() instanceof RuntimeException runtime ? runtime : new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                failed("interrupted");
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while calling the chat model", e);
+            }
+            log.warn("Chat model call failed on attempt {}: {}", attempt, failure.getMessage());
+        }
+        throw failure;
+    }
+
+    private Duration acquire(String account) throws InterruptedException {
+        final var waited = Timer.start(registry);
+        final var queuedCalls = queued(account);
+        queuedCalls.incrementAndGet();
+        lock.lock();
+        final var start = Math.max(virtualTime, finish.getOrDefault(account, 0.0));
+        final var ticket = new Ticket(account, start, sequence++);
+        finish.put(account, start + 1.0 / weights.getOrDefault(account, 1.0));
+        waiting.add(ticket);
+        try {
+            while (true) {
+                if (circuit == Circuit.OPEN) {
+                    final var wait = openUntil - System.nanoTime();
+                    if (wait > 0) {
+                        changed.awaitNanos(wait);
+                        continue;
+                    }
+                    circuit = Circuit.HALF_OPEN;
+                    log.info("Circuit breaker half open, probing the chat model");
+                }
+                if (waiting.peek() == ticket) {
+                    if (circuit == Circuit.HALF_OPEN) {
+                        if (!probing && inFlight == 0) {
+                            probing = true;
+                            break;
+                        }
+                    } else if (inFlight < Math.floor(limit)) {
+                        break;
+                    }
+                }
+                changed.await();
+            }
+            waiting.poll();
+            virtualTime = ticket.start();
+            inFlight++;
+            // the next ticket may be admitted too
+            changed.signalAll();
+            waited.stop(registry.timer("organizer.llm.queue.wait", "account", account));
+            return deadline();
+        } finally {
+            if (waiting.remove(ticket)) {
+                // interrupted while waiting
+                changed.signalAll();
+            }
+            lock.unlock();
+            queuedCalls.decrementAndGet();
+        }
+    }
+
+    private AtomicInteger queued(String account) {
+        return queued.computeIfAbsent(account, name -> {
+            final var count = new AtomicInteger();
+            Gauge.builder("organizer.llm.queued", count, AtomicInteger::get)
+                    .description("Calls waiting to be admitted to the chat model")
+                    .tag("account", name)
+                    .register(registry);
+            return count;
+        });
+    }
+
+    private void succeeded(long latency) {
+        lock.lock();
+        try {
+            inFlight--;
+            consecutiveFailures = 0;
+            if (probing) {
+                probing = false;
+                circuit = Circuit.CLOSED;
+                log.info("Circuit breaker closed");
+            }
+            final var slow = samples >= configuration.getMinSamples() && latency > p99;
+            record(latency);
+            if (slow) {
+                backOff();
+            } else {
+                // additive increase: about +1 once every call at the current limit has succeeded
+                limit = Math.min(configuration.getMaxConcurrency(), limit + 1.0 / limit);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        registry.counter("organizer.llm.calls", "outcome", "success").increment();
+    }
+
+    private void failed(String outcome) {
+        lock.lock();
+        try {
+            inFlight--;
+            consecutiveFailures++;
+            backOff();
+            if (probing || consecutiveFailures >= configuration.getBreakerThreshold()) {
+                probing = false;
+                circuit = Circuit.OPEN;
+                openUntil = System.nanoTime() + configuration.getBreakerOpenDuration().toNanos();
+                log.warn("Circuit breaker open for {} after {} consecutive failures",
+                        configuration.getBreakerOpenDuration(), consecutiveFailures);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        registry.counter("organizer.llm.calls", "outcome", outcome).increment();
+    }
+
+    /**
+     * Records the latency and token counts of a call, per model.
+     */
+    private void record(Prompt prompt, ChatResponse response, long latency) {
+        final var options = prompt.getOptions();
+        final var model = options == null || options.getModel() == null ? "default" : options.getModel();
+        registry.timer("organizer.llm.call", "model", model).record(latency, TimeUnit.NANOSECONDS);
+        final var usage = response.getMetadata() == null ? null : response.getMetadata().getUsage();
+        if (usage != null) {
+            registry.summary("organizer.llm.tokens", "kind", "prompt", "model", model)
+                    .record(usage.getPromptTokens() == null ? 0 : usage.getPromptTokens());
+            registry.summary("organizer.llm.tokens", "kind", "generation", "model", model)
+                    .record(usage.getGenerationTokens() == null ? 0 : usage.getGenerationTokens());
+        }
+    }
+
+    private void backOff() {
+        limit = Math.max(configuration.getMinConcurrency(), limit * configuration.getBackoffRatio());
+    }
+
+    private void record(long latency) {
+        latencies[samples % latencies.length] = latency;
+        samples++;
+        final var filled = Arrays.copyOf(latencies, Math.min(samples, latencies.length));
+        Arrays.sort(filled);
+        p99 = filled[(int) Math.ceil(filled.length * 0.99) - 1];
+    }
+
+    private Duration deadline() {
+        if (samples < configuration.getMinSamples()) {
+            return configuration.getMaxDeadline();
+        }
+        final var deadline = Duration.ofNanos((long) (p99 * configuration.getDeadlineMultiplier()));
+        if (deadline.compareTo(configuration.getMinDeadline()) < 0) {
+            return configuration.getMinDeadline();
+        }
+        return deadline.compareTo(configuration.getMaxDeadline()) > 0 ? configuration.getMaxDeadline() : deadline;
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+}
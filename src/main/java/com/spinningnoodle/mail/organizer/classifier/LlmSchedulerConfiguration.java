@@ -0,0 +1,35 @@
+package com.spinningnoodle.mail.organizer.classifier;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+@ConfigurationProperties(prefix = "llm-scheduler")
+@Data
+public class LlmSchedulerConfiguration {
+    // concurrent chat model calls to start with; grows by one per round of calls while latency holds
+    private int initialConcurrency = 2;
+    private int minConcurrency = 1;
+    private int maxConcurrency = 8;
+    // the concurrency limit is multiplied by this on an error, a timeout or a latency above the p99
+    private double backoffRatio = 0.5;
+    // latencies kept to compute percentiles from
+    private int latencyWindow = 200;
+    // latencies needed before percentiles are trusted for deadlines and backoff
+    private int minSamples = 20;
+    // a call is abandoned after this many times the p99 latency...
+    private double deadlineMultiplier = 3.0;
+    // ...but never sooner than this...
+    private Duration minDeadline = Duration.ofSeconds(10);
+    // ...nor later than this, which is also the deadline until enough latencies are known
+    private Duration maxDeadline = Duration.ofSeconds(120);
+    // attempts per call, waiting for the circuit breaker between them
+    private int maxAttempts = 3;
+    // consecutive failures that open the circuit breaker
+    private int breakerThreshold = 5;
+    // how long the breaker stays open before a single probe call is let through
+    private Duration breakerOpenDuration = Duration.ofSeconds(30);
+}
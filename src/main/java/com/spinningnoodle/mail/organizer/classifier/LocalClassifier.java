@@ -0,0 +1,305 @@
+package com.spinningnoodle.mail.organizer.classifier;
+
+import com.spinningnoodle.mail.organizer.model.ClassifierConfiguration;
+import com.spinningnoodle.mail.organizer.model.Email;
+import com.spinningnoodle.mail.organizer.service.store.ProgressStoreConfiguration;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * In-process multinomial naive Bayes over hashed sender, subject and body tokens, trained from the labels the LLM
+ * produces. Once it has seen enough labels it answers on its own when its best category is likely enough, so the
+ * chat model is only asked about the emails it is unsure of. Its probabilities are overconfident, so it is only
+ * trusted while it agrees with the chat model often enough on a held-out sample of the emails it would decide:
+ * until then, and for {@link ClassifierConfiguration.Local#getAuditRate()} of them afterwards, the chat model still
+ * classifies those emails and the answers are compared. The model is saved next to the progress store.
+ */
+@Slf4j
+@Component
+public class LocalClassifier {
+    private static final Pattern TOKEN = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final int MAX_BODY_TOKENS = 300;
+
+    private final ClassifierConfiguration.Local configuration;
+    private final String version;
+    private final Path path;
+    private final int features;
+    private final ScheduledExecutorService saver;
+    // guarded by this
+    private final List<String> categories = new ArrayList<>();
+    private final List<long[]> totals = new ArrayList<>();
+    private final List<int[]> counts = new ArrayList<>();
+    private long samples;
+    private boolean dirty;
+    // agreement with the chat model on the last audited emails the local model would have decided
+    private final boolean[] audits;
+    private long audited;
+    private int agreeing;
+
+    private final Counter confident;
+    private final Counter fallback;
+    private final Counter audit;
+    private final Counter agreed;
+    private final Counter disagreed;
+
+    /**
+     * Constructor to initialize the local classifier from its saved model, if any.
+     *
+     * @param classifierConfiguration the classifier configuration
+     * @param progressStoreConfiguration the progress store configuration, next to which the model is saved
+     * @param registry the registry agreement, audit and fallback rates are reported to
+     * @throws IOException if there is an error reading the saved model
+     */
+    public LocalClassifier(ClassifierConfiguration classifierConfiguration,
+                           ProgressStoreConfiguration progressStoreConfiguration,
+                           MeterRegistry registry) throws IOException {
+        this.configuration = classifierConfiguration.getLocal();
+        this.features = configuration.getFeatures();
+        this.version = classifierConfiguration.version() + "/" + features;
+        this.path = Paths.get(progressStoreConfiguration.getPath()).toAbsolutePath().resolveSibling("localClassifier.bin");
+        this.confident = registry.counter("organizer.local.predictions", "outcome", "confident");
+        this.fallback = registry.counter("organizer.local.predictions", "outcome", "fallback");
+        this.audit = registry.counter("organizer.local.predictions", "outcome", "audit");
+        this.agreed = registry.counter("organizer.local.agreement", "result", "agree");
+        this.disagreed = registry.counter("organizer.local.agreement", "result", "disagree");
+        this.audits = new boolean[Math.max(configuration.getAuditWindow(), 1)];
+        Gauge.builder("organizer.local.agreement.rate", this, LocalClassifier::agreement)
+                .description("Agreement with the chat model on the last audited emails the local model would decide")
+                .register(registry);
+        if (configuration.isEnabled() && Files.exists(path)) {
+            load();
+        }
+        long interval = configuration.getSaveInterval().toMillis();
+        saver = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("local-classifier-save").factory());
+        saver.scheduleWithFixedDelay(this::save, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Predicts the category of an email when the model is trained, confident enough and trusted. A confident
+     * prediction is held out for the LLM instead while the model is not trusted yet, and for a sample of the emails
+     * once it is.
+     *
+     * @param email the email to classify
+     * @return the category, or empty when the LLM has to decide
+     */
+    public Optional<String> classify(Email email) {
+        if (!configuration.isEnabled()) {
+            return Optional.empty();
+        }
+        final var prediction = predict(email);
+        if (prediction.isEmpty() || !confident(prediction.get())) {
+            fallback.increment();
+            return Optional.empty();
+        }
+        if (!trusted() || ThreadLocalRandom.current().nextDouble() < configuration.getAuditRate()) {
+            audit.increment();
+            return Optional.empty();
+        }
+        confident.increment();
+        return Optional.of(prediction.get().category());
+    }
+
+    /**
+     * Learns from the category the LLM gave an email. When the local model would have decided the email itself,
+     * the email was held out, and whether the local model agreed counts towards trusting it.
+     *
+     * @param email the email
+     * @param category the category the LLM gave it
+     */
+    public void train(Email email, String category) {
+        if (!configuration.isEnabled()) {
+            return;
+        }
+        predict(email).filter(this::confident).ifPresent(prediction -> audited(prediction.category().equals(category)));
+        final var hashes = hashes(email);
+        synchronized (this) {
+            int c = categories.indexOf(category);
+            if (c < 0) {
+                c = categories.size();
+                categories.add(category);
+                totals.add(new long[2]);
+                counts.add(new int[features]);
+            }
+            final var total = totals.get(c);
+            final var count = counts.get(c);
+            total[0]++;
+            total[1] += hashes.length;
+            for (int hash : hashes) {
+                count[hash]++;
+            }
+            samples++;
+            dirty = true;
+        }
+    }
+
+    private boolean confident(Prediction prediction) {
+        return prediction.probability() >= configuration.getThreshold();
+    }
+
+    private synchronized void audited(boolean agrees) {
+        (agrees ? agreed : disagreed).increment();
+        final var slot = (int) (audited % audits.length);
+        if (audited >= audits.length && audits[slot]) {
+            agreeing--;
+        }
+        audits[slot] = agrees;
+        if (agrees) {
+            agreeing++;
+        }
+        audited++;
+    }
+
+    /**
+     * Whether a full window of audited emails has been compared, and the local model agreed on enough of them.
+     */
+    private synchronized boolean trusted() {
+        return audited >= audits.length && agreement() >= configuration.getMinAgreement();
+    }
+
+    private synchronized double agreement() {
+        final var compared = Math.min(audited, audits.length);
+        return compared == 0 ? Double.NaN : (double) agreeing / compared;
+    }
+
+    private synchronized Optional<Prediction> predict(Email email) {
+        if (samples < configuration.getMinSamples() || categories.isEmpty()) {
+            return Optional.empty();
+        }
+        final var hashes = hashes(email);
+        final var scores = new double[categories.size()];
+        var best = 0;
+        for (int c = 0; c < scores.length; c++) {
+            final var total = totals.get(c);
+            final var count = counts.get(c);
+            // Laplace smoothing over documents and hashed features
+            var score = Math.log((total[0] + 1.0) / (samples + scores.length));
+            final var denominator = Math.log(total[1] + (double) features);
+            for (int hash : hashes) {
+                score += Math.log(count[hash] + 1.0) - denominator;
+            }
+            scores[c] = score;
+            if (score > scores[best]) {
+                best = c;
+            }
+        }
+        var sum = 0.0;
+        for (double score : scores) {
+            sum += Math.exp(score - scores[best]);
+        }
+        return Optional.of(new Prediction(categories.get(best), 1.0 / sum));
+    }
+
+    private int[] hashes(Email email) {
+        final var tokens = new ArrayList<String>();
+        if (email.sender() != null) {
+            final var sender = email.sender().toLowerCase(Locale.ROOT);
+            tokens.add("from:" + ClassificationCache.senderDomain(sender));
+            for (String token : TOKEN.split(sender)) {
+                addToken(tokens, "from:", token);
+            }
+        }
+        if (email.subject() != null) {
+            for (String token : TOKEN.split(email.subject().toLowerCase(Locale.ROOT))) {
+                addToken(tokens, "subject:", token);
+            }
+        }
+        if (email.body() != null) {
+            final var body = TOKEN.split(email.body().toLowerCase(Locale.ROOT));
+            for (int i = 0; i < Math.min(body.length, MAX_BODY_TOKENS); i++) {
+                addToken(tokens, "body:", body[i]);
+            }
+        }
+        return tokens.stream().mapToInt(token -> Math.floorMod(token.hashCode() * 0x9E3779B9, features)).toArray();
+    }
+
+    private static void addToken(List<String> tokens, String field, String token) {
+        if (token.length() > 1 && token.length() <= 30) {
+            tokens.add(field + token);
+        }
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (!version.equals(in.readUTF())) {
+                log.info("Classifier configuration changed, discarding the local model in {}", path);
+                return;
+            }
+            samples = in.readLong();
+            final var size = in.readInt();
+            for (int c = 0; c < size; c++) {
+                categories.add(in.readUTF());
+                totals.add(new long[]{in.readLong(), in.readLong()});
+                final var count = new int[features];
+                for (int i = 0; i < features; i++) {
+                    count[i] = in.readInt();
+                }
+                counts.add(count);
+            }
+        }
+        log.info("Loaded local model trained on {} labels from {}", samples, path);
+    }
+
+    /**
+     * Writes the model to a temporary file and moves it over the saved model, if it changed since the last save.
+     */
+    synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeUTF(version);
+            out.writeLong(samples);
+            out.writeInt(categories.size());
+            for (int c = 0; c < categories.size(); c++) {
+                out.writeUTF(categories.get(c));
+                out.writeLong(totals.get(c)[0]);
+                out.writeLong(totals.get(c)[1]);
+                for (int count : counts.get(c)) {
+                    out.writeInt(count);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to save local model to {}", tmp, e);
+            return;
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
+        } catch (IOException e) {
+            log.error("Failed to replace local model {}", path, e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        saver.shutdown();
+        save();
+    }
+
+    private record Prediction(String category, double probability) {
+    }
+}
@@ -0,0 +1,106 @@
+package com.spinningnoodle.mail.organizer.model;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Bounds how much of an email body is downloaded and how much of its text goes into the prompt.
+ *
+ * @param maxBytes bytes read from each text part, 0 for no limit
+ * @param maxTokens approximate prompt tokens kept from the extracted text, 0 for no limit
+ */
+public record BodyLimits(int maxBytes, int maxTokens) {
+    public static final BodyLimits UNLIMITED = new BodyLimits(0, 0);
+    // rough average for English text with the tokenizers of the usual local models
+    static final int CHARS_PER_TOKEN = 4;
+
+    public boolean isByteLimited() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns the character budget for text extraction matching the token budget.
+     *
+     * @return the maximum number of characters, 0 for no limit
+     */
+    public int maxChars() {
+        return maxTokens * CHARS_PER_TOKEN;
+    }
+
+    /**
+     * Wraps the stream so that at most {@link #maxBytes()} can be read from it.
+     *
+     * @param inputStream the stream to read
+     * @return the bounded stream, or the stream itself when there is no limit
+     */
+    public InputStream limit(InputStream inputStream) {
+        return isByteLimited() ? new BoundedInputStream(inputStream, maxBytes) : inputStream;
+    }
+
+    /**
+     * Cuts the text to the token budget, preferably at the end of a sentence, otherwise at a word boundary.
+     *
+     * @param text the extracted text
+     * @return the text, at most {@code maxTokens * 4} characters long
+     */
+    public String truncate(String text) {
+        int maxChars = maxChars();
+        if (maxTokens <= 0 || text == null || text.length() <= maxChars) {
+            return text;
+        }
+        for (int i = maxChars; i > maxChars / 2; i--) {
+            char c = text.charAt(i - 1);
+            if ((c == '.' || c == '!' || c == '?') && Character.isWhitespace(text.charAt(i))) {
+                return text.substring(0, i);
+            }
+        }
+        int space = text.lastIndexOf(' ', maxChars);
+        return text.substring(0, space > maxChars / 2 ? space : maxChars);
+    }
+
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream inputStream, long limit) {
+            super(inputStream);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int c = super.read();
+            if (c != -1) {
+                remaining--;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+}
@@ -4,17 +4,115 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 @Configuration
 @ConfigurationProperties(prefix = "classifier-configuration")
 @Data
 public class ClassifierConfiguration {
+    private static final Pattern THINKING = Pattern.compile("(?s)<think>.*?</think>");
+    private static final Pattern CATEGORY = Pattern.compile("(?i)category\\s*:\\s*<?\\s*([\\w -]+?)\\s*>?\\s*(?:$|[\\n.,;*])");
+    // tokens of an email in a prompt besides its body: id, sender, subject and date
+    private static final int EMAIL_TOKENS = 100;
+    // tokens generated for one {"id": n, "category": "<category>"} item of a batch reply
+    private static final int BATCH_ITEM_TOKENS = 32;
     private boolean useBody;
     private boolean dryRun;
+    // bytes downloaded from each text part of the body, 0 to download everything
+    private int maxBodyBytes = 16 * 1024;
+    // approximate tokens of body text put into the prompt, 0 for no limit
+    private int maxBodyTokens = 1000;
+    // emails classified together in a single prompt, 1 to send each email on its own
+    private int batchSize = 1;
+    // how long to wait for a batch to fill up before sending it anyway
+    private Duration batchWindow = Duration.ofSeconds(2);
+    // how long Ollama keeps the model loaded after a request
+    private String keepAlive = "30m";
+    // context window; fixed so the cached prompt prefix is not thrown away
+    private int numCtx = 4096;
+    // tokens generated per email, enough for category:<category>; 0 for no limit, e.g. for reasoning models
+    private int numPredict = 16;
     Map<String, String> descriptions;
+    private Cache cache = new Cache();
+    private Local local = new Local();
+    private Cascade cascade = new Cascade();
+    private Dedup dedup = new Dedup();
+    // evaluated in order on the fetched headers, before the body is downloaded
+    private List<HeaderRule> headerRules = new ArrayList<>();
+
+    @Data
+    public static class Cache {
+        private boolean enabled = true;
+        private int maxEntries = 10_000;
+        private Duration ttl = Duration.ofDays(7);
+        // optional file that persists cached classifications across runs
+        private String path;
+        // rewrite the file once it holds this many times more lines than cached entries
+        private double compactionRatio = 2.0;
+    }
+
+    @Data
+    public static class Local {
+        private boolean enabled;
+        // probability the local model must give its best category before the LLM is skipped
+        private double threshold = 0.98;
+        // share of the emails the trusted local model would decide that the LLM still classifies, to compare
+        private double auditRate = 0.05;
+        // audited emails the agreement is measured over; the local model decides nothing before that many
+        private int auditWindow = 200;
+        // agreement with the LLM on the audited emails below which the local model stops deciding
+        private double minAgreement = 0.97;
+        // LLM labels to learn from before the local model answers at all
+        private int minSamples = 500;
+        // hashed feature buckets per category
+        private int features = 1 << 18;
+        // how often the learned model is saved next to the progress store
+        private Duration saveInterval = Duration.ofMinutes(1);
+    }
+
+    @Data
+    public static class Cascade {
+        private boolean enabled;
+        // asked first
+        private String smallModel = "llama3.2:1b";
+        // asked when the small model is unsure; empty for the model configured for Spring AI
+        private String largeModel;
+        // categories the small model is not trusted with: its answer is checked by the large model
+        private Set<String> escalate = new HashSet<>(Set.of("Other"));
+    }
+
+    @Data
+    public static class Dedup {
+        private boolean enabled = true;
+        // replies get the category of the first email of their thread
+        private boolean threads = true;
+        // mailing list posts get the category of the first post of their List-Id
+        private boolean lists = true;
+        // copies of a campaign get the category of the first copy with a near identical subject and body
+        private boolean similar = true;
+        // SimHash bits two copies may differ in; at most 3
+        private int maxDistance = 3;
+        // words of subject and body text below which emails are not compared
+        private int minTokens = 20;
+        // threads, lists and campaigns remembered
+        private int maxEntries = 10_000;
+    }
+
+    @Data
+    public static class HeaderRule {
+        private String category;
+        // header name to a regular expression that must be found in its value; all of them have to match
+        private Map<String, String> headers;
+    }
 
     public String forPrompt() {
         return descriptions.entrySet().stream()
@@ -31,6 +129,97 @@ public class ClassifierConfiguration {
         return "Other";
     }
 
+    /**
+     * Identifies the category of a free-text reply only when it is unambiguous: the category given as
+     * category:&lt;category&gt;, or else the only category named anywhere in the reply. Reasoning between
+     * &lt;think&gt; tags is ignored.
+     *
+     * @param inputString the chat model reply
+     * @return the category, or empty when the reply names none or several
+     */
+    public Optional<String> identifyStrictly(String inputString) {
+        if (inputString == null) {
+            return Optional.empty();
+        }
+        final var reply = THINKING.matcher(inputString).replaceAll("");
+        final var marked = CATEGORY.matcher(reply);
+        if (marked.find()) {
+            final var category = category(marked.group(1));
+            if (category.isPresent()) {
+                return category;
+            }
+        }
+        final var named = descriptions.keySet().stream()
+                .filter(name -> reply.toLowerCase().contains(name.toLowerCase()))
+                .toList();
+        return named.size() == 1 ? Optional.of(named.get(0)) : Optional.empty();
+    }
+
+    /**
+     * Matches a category name given in a structured reply exactly, ignoring case, rather than searching free text.
+     *
+     * @param category the category name from the reply
+     * @return the configured category, "Other", or empty when the name is not a category
+     */
+    public Optional<String> category(String category) {
+        if (category == null) {
+            return Optional.empty();
+        }
+        final var name = category.trim();
+        if (name.equalsIgnoreCase("Other")) {
+            return Optional.of("Other");
+        }
+        return descriptions.keySet().stream().filter(name::equalsIgnoreCase).findFirst();
+    }
+
+    /**
+     * Identifies the settings that influence classification, so that results from an older configuration are not reused.
+     *
+     * @return a short version string
+     */
+    public String version() {
+        return Integer.toHexString(Objects.hash(descriptions, useBody, maxBodyTokens, headerRules));
+    }
+
+    public BodyLimits bodyLimits() {
+        return new BodyLimits(maxBodyBytes, maxBodyTokens);
+    }
+
+    /**
+     * Returns the context window to ask for: num-ctx, raised when a full batch of emails with bodies at
+     * max-body-tokens would not fit next to the instructions and the reply.
+     *
+     * @param instructions the rendered batch instructions every batch prompt starts with
+     * @return the context window in tokens
+     * @throws IllegalArgumentException if emails are batched with unlimited bodies, which no context is sure to fit
+     */
+    public int contextWindow(String instructions) {
+        if (batchSize <= 1) {
+            return numCtx;
+        }
+        if (useBody && maxBodyTokens <= 0) {
+            throw new IllegalArgumentException("classifier-configuration.batch-size above 1 needs max-body-tokens to fit a batch into the context");
+        }
+        final long needed = instructions.length() / BodyLimits.CHARS_PER_TOKEN
+                + (long) batchSize * (EMAIL_TOKENS + (useBody ? maxBodyTokens : 0))
+                + (long) batchSize * BATCH_ITEM_TOKENS;
+        if (needed > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("classifier-configuration.batch-size and max-body-tokens exceed any context");
+        }
+        return Math.max(numCtx, (int) needed);
+    }
+
+    /**
+     * Returns how many tokens a batch reply may generate: num-predict per email, but at least enough for one JSON
+     * item each.
+     *
+     * @param size the number of emails in the prompt
+     * @return the maximum number of tokens to generate, 0 for no limit
+     */
+    public int batchNumPredict(int size) {
+        return numPredict > 0 ? Math.max(numPredict, BATCH_ITEM_TOKENS) * size : 0;
+    }
+
     public Set<String> getFolders() {
         return getDescriptions().keySet();
     }
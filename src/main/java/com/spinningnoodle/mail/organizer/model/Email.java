@@ -5,31 +5,52 @@ import jakarta.mail.BodyPart;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.internet.ContentType;
 import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.ParseException;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.angus.mail.imap.IMAPFolder;
 import org.eclipse.angus.mail.imap.IMAPInputStream;
 import org.eclipse.angus.mail.imap.IMAPMessage;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.TextNode;
-import org.springframework.util.StopWatch;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 @Slf4j
-@Builder
+@Builder(toBuilder = true)
 public record Email(String subject, String body, String sender, LocalDateTime date, Message message,
                     String messageId,
                     int messageNumber,
-                    FolderConfig folderConfig) {
+                    long uid,
+                    long uidValidity,
+                    Map<String, String> headers,
+                    FolderConfig folderConfig,
+                    // System.nanoTime() when fetched, to measure how long the email takes through the pipeline
+                    long fetchedAt) {
+    /**
+     * Headers fetched together with the envelope, used to classify bulk mail without downloading the body and to
+     * group replies by thread.
+     */
+    public static final List<String> HEADERS = List.of(
+            "List-Id", "List-Unsubscribe", "Precedence", "X-Mailer", "Return-Path", "References", "In-Reply-To");
 
     /**
      * Creates an Email object from a Message object.
@@ -42,17 +63,33 @@ public record Email(String subject, String body, String sender, LocalDateTime da
      */
     public static Email from(Message message, FolderConfig folderConfig) throws MessagingException, IOException {
         final var builder = Email.builder();
-        builder.messageId(((IMAPMessage) message).getMessageID());
+        builder.messageId(((MimeMessage) message).getMessageID());
         builder.message(message);
         builder.messageNumber(message.getMessageNumber());
-        builder.date(LocalDateTime.ofInstant(message.getReceivedDate().toInstant(), ZoneId.systemDefault()));
+        if (message.getFolder() instanceof UIDFolder uidFolder) {
+            // both are cached by the folder: the UID from the fetch profile, UIDVALIDITY from SELECT
+            builder.uid(uidFolder.getUID(message));
+            builder.uidValidity(uidFolder.getUIDValidity());
+        }
+        // messages read from archives have no INTERNALDATE; fall back to the Date header
+        Date received = message.getReceivedDate() != null ? message.getReceivedDate() : message.getSentDate();
+        builder.date(received == null ? null : LocalDateTime.ofInstant(received.toInstant(), ZoneId.systemDefault()));
         if (message.getFrom() != null && message.getFrom().length > 0) {
             builder.sender(((InternetAddress) message.getFrom()[0]).getAddress());
         } else {
             builder.sender("unknown");
         }
         builder.subject(message.getSubject());
+        final var headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        for (String name : HEADERS) {
+            String value = ((MimeMessage) message).getHeader(name, ", ");
+            if (value != null) {
+                headers.put(name, value);
+            }
+        }
+        builder.headers(headers);
         builder.folderConfig(folderConfig);
+        builder.fetchedAt(System.nanoTime());
 
         return builder.build();
     }
@@ -65,11 +102,21 @@ public record Email(String subject, String body, String sender, LocalDateTime da
      * @throws IOException if there is an error reading the message content
      */
     public Email withBody() throws MessagingException, IOException {
-        StopWatch stopWatch = new StopWatch();
-        stopWatch.start();
-        final var updated = new Email(subject, parse(message), sender, date, message, messageId, messageNumber, folderConfig);
-        stopWatch.stop();
-        return updated;
+        return withBody(BodyLimits.UNLIMITED);
+    }
+
+    /**
+     * Returns a new Email object with the body content parsed within the given limits.
+     * Only the first {@link BodyLimits#maxBytes()} bytes of the text parts are read, which with IMAP partial
+     * fetch enabled means only that much is downloaded; the extracted text is then cut to the token budget.
+     *
+     * @param limits the byte and token limits
+     * @return the updated Email object
+     * @throws MessagingException if there is an error accessing the message
+     * @throws IOException if there is an error reading the message content
+     */
+    public Email withBody(BodyLimits limits) throws MessagingException, IOException {
+        return toBuilder().body(limits.truncate(parse(message, limits))).build();
     }
 
     /**
@@ -82,22 +129,52 @@ public record Email(String subject, String body, String sender, LocalDateTime da
         ((IMAPFolder) message.getFolder()).moveMessages(new Message[]{message}, folderConfig.folderMap().get(folderName));
     }
 
+    /**
+     * Returns the name of the IMAP account the email was fetched from.
+     *
+     * @return the account name, or null for an email not fetched over IMAP
+     */
+    public String account() {
+        return folderConfig == null ? null : folderConfig.account();
+    }
+
+    /**
+     * Returns this email without its parsed body, once the body is no longer needed.
+     *
+     * @return the email without body
+     */
+    public Email withoutBody() {
+        return body == null ? this : toBuilder().body(null).build();
+    }
+
+    /**
+     * Drops what the IMAP message cached from the server, its envelope, headers, body structure and content,
+     * once the email has been handled. The open folder keeps the Message itself, so that is all it would retain.
+     */
+    public void release() {
+        if (message instanceof IMAPMessage imapMessage) {
+            imapMessage.invalidateHeaders();
+        }
+    }
+
     @Override
     public String toString() {
         return "From: " + sender + "\nSubject: " + subject + "\nDate: " + date + "\nBody:" + body;
     }
 
     /**
-     * Parses the content of a Message object.
+     * Parses the content of a Message object or one of its parts. Only text parts are read: images and other
+     * binary parts, such as those of a multipart/related, are skipped.
      *
-     * @param message the Message object
+     * @param part the Message object or body part
+     * @param limits the byte limit for reading text content
      * @return the parsed content as a String
      * @throws MessagingException if there is an error accessing the message
      * @throws IOException if there is an error reading the message content
      */
-    private static String parse(Message message) throws MessagingException, IOException {
-        if (message.isMimeType("multipart/*")) {
-            Object content = message.getContent();
+    private static String parse(Part part, BodyLimits limits) throws MessagingException, IOException {
+        if (part.isMimeType("multipart/*")) {
+            Object content = part.getContent();
             StringBuilder builder = new StringBuilder();
             if (content instanceof Multipart) {
                 MimeMultipart mimeMultipart = (MimeMultipart) content;
@@ -105,13 +182,18 @@ public record Email(String subject, String body, String sender, LocalDateTime da
                     BodyPart bodyPart2 = mimeMultipart.getBodyPart(i);
                     String disposition = bodyPart2.getDisposition();
                     if (disposition == null || disposition.equalsIgnoreCase(MimeBodyPart.INLINE)) {
-                        builder.append(parse(bodyPart2.getContent().toString()));
+                        if (bodyPart2.isMimeType("multipart/*")) {
+                            builder.append(parse(bodyPart2, limits));
+                        } else if (bodyPart2.isMimeType("text/*")) {
+                            builder.append(extract(bodyPart2, limits));
+                        }
                     }
                 }
             } else if (content instanceof IMAPInputStream imapInputStream) {
-                try (BufferedReader reader =
+                try (imapInputStream;
+                     BufferedReader reader =
                              new BufferedReader(
-                                     new InputStreamReader(imapInputStream))) {
+                                     new InputStreamReader(limits.limit(imapInputStream)))) {
                     String line;
                     while ((line = reader.readLine()) != null) {
                         builder.append(line).append("\n");
@@ -120,21 +202,37 @@ public record Email(String subject, String body, String sender, LocalDateTime da
                 return builder.toString();
             }
             return builder.toString();
-        } else {
-            return parse(message.getContent().toString());
+        } else if (part.isMimeType("text/*")) {
+            return extract(part, limits);
         }
+        return "";
     }
 
     /**
-     * Parses the body content of an email.
+     * Extracts the visible text of a single part, streaming its decoded content through the
+     * {@link HtmlTextExtractor} and stopping after the byte limit or once the character budget is reached.
      *
-     * @param body the body content as a String
-     * @return the parsed content as a String
+     * @param part the part to read
+     * @param limits the byte limit and character budget
+     * @return the text content as a String
+     * @throws MessagingException if there is an error accessing the part
+     * @throws IOException if there is an error reading the part
      */
-    private static String parse(String body) {
-        Document doc = Jsoup.parse(body);
-        return doc.nodeStream().filter(n -> n instanceof TextNode)
-                .map(n -> ((TextNode) n).text())
-                .collect(StringBuilder::new, StringBuilder::append, StringBuilder::append).toString();
+    private static String extract(Part part, BodyLimits limits) throws MessagingException, IOException {
+        if (!limits.isByteLimited()) {
+            return HtmlTextExtractor.extract(new StringReader(part.getContent().toString()), limits.maxChars());
+        }
+        Charset charset = StandardCharsets.UTF_8;
+        try {
+            String name = new ContentType(part.getContentType()).getParameter("charset");
+            if (name != null) {
+                charset = Charset.forName(MimeUtility.javaCharset(name));
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            log.debug("Unknown charset in {}, falling back to UTF-8", part.getContentType());
+        }
+        try (Reader reader = new InputStreamReader(limits.limit(part.getInputStream()), charset)) {
+            return HtmlTextExtractor.extract(reader, limits.maxChars());
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,404 @@
+package com.spinningnoodle.mail.organizer.model;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Extracts the visible text of an HTML (or plain text) body in a single pass over a Reader, without building a DOM.
+ * <p>
+ * Output matches joining the normalized text of every Jsoup {@code TextNode}: whitespace is collapsed per run of
+ * text between two tags, script and style contents are dropped, comments and declarations are skipped and
+ * character references are decoded. Unlike Jsoup, nothing inside {@code <head>} is emitted, not even the title.
+ */
+public final class HtmlTextExtractor {
+    private static final Set<String> DATA_ELEMENTS = Set.of("script", "style");
+    private static final Set<String> RCDATA_ELEMENTS = Set.of("title", "textarea");
+    private static final Set<String> RAWTEXT_ELEMENTS = Set.of("xmp", "iframe", "noembed", "noframes");
+    private static final Set<String> HEAD_ELEMENTS = Set.of(
+            "head", "title", "meta", "link", "style", "script", "base", "basefont", "bgsound", "noscript", "template");
+    // entities that are also recognised without the trailing semicolon
+    private static final Set<String> LEGACY_ENTITIES = Set.of("amp", "lt", "gt", "quot", "nbsp");
+    private static final Map<String, String> ENTITIES = Map.ofEntries(
+            Map.entry("amp", "&"), Map.entry("lt", "<"), Map.entry("gt", ">"), Map.entry("quot", "\""),
+            Map.entry("apos", "'"), Map.entry("nbsp", "\u00A0"), Map.entry("copy", "\u00A9"),
+            Map.entry("reg", "\u00AE"), Map.entry("trade", "\u2122"), Map.entry("hellip", "\u2026"),
+            Map.entry("mdash", "\u2014"), Map.entry("ndash", "\u2013"), Map.entry("lsquo", "\u2018"),
+            Map.entry("rsquo", "\u2019"), Map.entry("ldquo", "\u201C"), Map.entry("rdquo", "\u201D"),
+            Map.entry("laquo", "\u00AB"), Map.entry("raquo", "\u00BB"), Map.entry("bull", "\u2022"),
+            Map.entry("middot", "\u00B7"), Map.entry("euro", "\u20AC"), Map.entry("pound", "\u00A3"),
+            Map.entry("yen", "\u00A5"), Map.entry("cent", "\u00A2"), Map.entry("deg", "\u00B0"),
+            Map.entry("times", "\u00D7"), Map.entry("zwnj", "\u200C"), Map.entry("zwj", "\u200D"),
+            Map.entry("shy", "\u00AD"), Map.entry("eacute", "\u00E9"), Map.entry("egrave", "\u00E8"),
+            Map.entry("aacute", "\u00E1"), Map.entry("agrave", "\u00E0"), Map.entry("auml", "\u00E4"),
+            Map.entry("ouml", "\u00F6"), Map.entry("uuml", "\u00FC"), Map.entry("szlig", "\u00DF"),
+            Map.entry("ccedil", "\u00E7"), Map.entry("ntilde", "\u00F1"));
+
+    private final Source in;
+    private final StringBuilder out = new StringBuilder();
+    private final int maxChars;
+    // nothing but whitespace, doctype, comments or <html> seen yet, so a head element opens the head
+    private boolean beforeHead = true;
+    private boolean inHead;
+    // whitespace collapsing state of the current run of text
+    private boolean lastWasWhite;
+    private boolean pendingSpace;
+    private boolean runHasText;
+
+    private HtmlTextExtractor(Reader reader, int maxChars) {
+        this.in = new Source(reader);
+        this.maxChars = maxChars <= 0 ? Integer.MAX_VALUE : maxChars;
+    }
+
+    /**
+     * Extracts the visible text of an HTML string.
+     *
+     * @param html the HTML or plain text
+     * @return the extracted text
+     */
+    public static String extract(String html) {
+        try {
+            return extract(new StringReader(html), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Extracts the visible text read from the reader, stopping once the character budget is reached.
+     *
+     * @param reader the HTML or plain text source, read up to the budget only
+     * @param maxChars the maximum length of the returned text, 0 for no limit
+     * @return the extracted text
+     * @throws IOException if there is an error reading
+     */
+    public static String extract(Reader reader, int maxChars) throws IOException {
+        return new HtmlTextExtractor(reader, maxChars).run();
+    }
+
+    private String run() throws IOException {
+        int c;
+        while (out.length() < maxChars && (c = in.read()) != -1) {
+            if (c == '<' && startsMarkup()) {
+                endRun();
+                markup();
+            } else if (c == '&') {
+                text(characterReference());
+            } else {
+                text((char) c);
+            }
+        }
+        endRun();
+        if (out.length() > maxChars) {
+            out.setLength(maxChars);
+        }
+        return out.toString();
+    }
+
+    private boolean startsMarkup() throws IOException {
+        int next = in.peek(0);
+        return isAsciiLetter(next) || next == '/' || next == '!' || next == '?';
+    }
+
+    private void markup() throws IOException {
+        int c = in.read();
+        if (c == '!') {
+            if (in.peek(0) == '-' && in.peek(1) == '-') {
+                in.read();
+                in.read();
+                skipComment();
+            } else {
+                skipTo('>');
+            }
+        } else if (c == '?') {
+            skipTo('>');
+        } else if (c == '/') {
+            if (isAsciiLetter(in.peek(0))) {
+                endTag(tagName());
+            } else {
+                // "</>" is dropped, anything else is a bogus comment
+                skipTo('>');
+            }
+        } else {
+            in.unread();
+            startTag(tagName());
+        }
+    }
+
+    private void startTag(String name) throws IOException {
+        skipAttributes();
+        if (!"html".equals(name)) {
+            // head elements before any body content open the head implicitly
+            if ("head".equals(name) || (beforeHead && HEAD_ELEMENTS.contains(name))) {
+                inHead = true;
+            } else if (!HEAD_ELEMENTS.contains(name)) {
+                inHead = false;
+            }
+            beforeHead = false;
+        }
+        if (DATA_ELEMENTS.contains(name)) {
+            rawText(name, false, false);
+        } else if (RCDATA_ELEMENTS.contains(name)) {
+            rawText(name, !inHead, true);
+        } else if (RAWTEXT_ELEMENTS.contains(name)) {
+            rawText(name, !inHead, false);
+        }
+    }
+
+    private void endTag(String name) throws IOException {
+        skipTo('>');
+        if ("head".equals(name)) {
+            inHead = false;
+            beforeHead = false;
+        }
+    }
+
+    /**
+     * Consumes the content of an element that cannot contain tags, up to its end tag.
+     */
+    private void rawText(String name, boolean emit, boolean decode) throws IOException {
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '<' && in.peek(0) == '/' && isEndTag(name)) {
+                if (emit) {
+                    endRun();
+                }
+                in.read();
+                tagName();
+                skipTo('>');
+                return;
+            }
+            if (emit) {
+                if (c == '&' && decode) {
+                    text(characterReference());
+                } else {
+                    text((char) c);
+                }
+            }
+        }
+    }
+
+    private boolean isEndTag(String name) throws IOException {
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase(in.peek(i + 1)) != name.charAt(i)) {
+                return false;
+            }
+        }
+        int after = in.peek(name.length() + 1);
+        return after == '>' || after == '/' || isWhitespace(after);
+    }
+
+    private String tagName() throws IOException {
+        StringBuilder name = new StringBuilder();
+        int c;
+        while ((c = in.peek(0)) != -1 && c != '>' && c != '/' && !isWhitespace(c)) {
+            name.append((char) in.read());
+        }
+        return name.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private void skipAttributes() throws IOException {
+        int c;
+        boolean afterEquals = false;
+        while ((c = in.read()) != -1 && c != '>') {
+            if (afterEquals && (c == '"' || c == '\'')) {
+                skipTo(c);
+                afterEquals = false;
+            } else if (c == '=') {
+                afterEquals = true;
+            } else if (!isWhitespace(c)) {
+                afterEquals = false;
+            }
+        }
+    }
+
+    private void skipComment() throws IOException {
+        // "<!-->" and "<!--->" are complete (empty) comments
+        if (in.peek(0) == '>') {
+            in.read();
+            return;
+        }
+        if (in.peek(0) == '-' && in.peek(1) == '>') {
+            in.read();
+            in.read();
+            return;
+        }
+        int dashes = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '>' && dashes >= 2) {
+                return;
+            }
+            dashes = c == '-' ? dashes + 1 : 0;
+        }
+    }
+
+    private void skipTo(int end) throws IOException {
+        int c;
+        do {
+            c = in.read();
+        } while (c != -1 && c != end);
+    }
+
+    /**
+     * Decodes a character reference after an ampersand, returning the literal text when it is not one.
+     */
+    private String characterReference() throws IOException {
+        if (in.peek(0) == '#') {
+            boolean hex = in.peek(1) == 'x' || in.peek(1) == 'X';
+            int start = hex ? 2 : 1;
+            int length = 0;
+            long value = 0;
+            int c;
+            while ((c = in.peek(start + length)) != -1 && Character.digit(c, hex ? 16 : 10) >= 0 && length < 8) {
+                value = value * (hex ? 16 : 10) + Character.digit(c, hex ? 16 : 10);
+                length++;
+            }
+            if (length == 0) {
+                return "&";
+            }
+            in.skip(start + length);
+            if (in.peek(0) == ';') {
+                in.read();
+            }
+            return value == 0 || value > Character.MAX_CODE_POINT || (value >= 0xD800 && value <= 0xDFFF)
+                    ? "\uFFFD" : Character.toString((int) value);
+        }
+        int length = 0;
+        int c;
+        while ((c = in.peek(length)) != -1 && Character.isLetterOrDigit(c) && length < 32) {
+            length++;
+        }
+        String name = in.peekString(length);
+        String decoded = ENTITIES.get(name);
+        if (decoded != null && in.peek(length) == ';') {
+            in.skip(length + 1);
+            return decoded;
+        }
+        if (decoded != null && LEGACY_ENTITIES.contains(name)) {
+            in.skip(length);
+            return decoded;
+        }
+        return "&";
+    }
+
+    private void text(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            text(text.charAt(i));
+        }
+    }
+
+    /**
+     * Appends one character of the current text run, collapsing whitespace like Jsoup's normaliseWhitespace.
+     */
+    private void text(char c) {
+        if (isWhitespace(c) || c == '\u00A0') {
+            if (!lastWasWhite) {
+                pendingSpace = true;
+                lastWasWhite = true;
+            }
+        } else if (c != '\u200B' && c != '\u00AD') {
+            if (!runHasText) {
+                runHasText = true;
+                beforeHead = false;
+                inHead = false;
+            }
+            if (pendingSpace) {
+                out.append(' ');
+                pendingSpace = false;
+            }
+            out.append(c);
+            lastWasWhite = false;
+        }
+    }
+
+    /**
+     * Ends the current run of text at a tag; a whitespace-only run is dropped inside the head.
+     */
+    private void endRun() {
+        if (pendingSpace && (runHasText || !inHead)) {
+            out.append(' ');
+        }
+        pendingSpace = false;
+        lastWasWhite = false;
+        runHasText = false;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isAsciiLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Buffered reader with a small lookahead.
+     */
+    private static final class Source {
+        private final Reader reader;
+        private char[] buffer = new char[8192];
+        private int position;
+        private int limit;
+
+        Source(Reader reader) {
+            this.reader = reader;
+        }
+
+        int read() throws IOException {
+            int c = peek(0);
+            if (c != -1) {
+                position++;
+            }
+            return c;
+        }
+
+        void unread() {
+            position--;
+        }
+
+        void skip(int count) {
+            position += count;
+        }
+
+        int peek(int offset) throws IOException {
+            if (position + offset >= limit && !fill(offset + 1)) {
+                return -1;
+            }
+            return buffer[position + offset];
+        }
+
+        String peekString(int length) {
+            return new String(buffer, position, length);
+        }
+
+        /**
+         * Makes at least {@code needed} characters available after the current position, keeping one behind it
+         * so that {@link #unread()} stays possible.
+         */
+        private boolean fill(int needed) throws IOException {
+            int keep = Math.max(position - 1, 0);
+            if (keep > 0) {
+                System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+                position -= keep;
+                limit -= keep;
+            }
+            if (position + needed > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + needed));
+            }
+            while (limit < position + needed) {
+                int read = reader.read(buffer, limit, buffer.length - limit);
+                if (read == -1) {
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.spinningnoodle.mail.organizer.service;
+
+import com.spinningnoodle.mail.organizer.classifier.Classifier;
+import com.spinningnoodle.mail.organizer.classifier.LlmScheduler;
+import com.spinningnoodle.mail.organizer.model.ClassifierConfiguration;
+import com.spinningnoodle.mail.organizer.service.email.ImapConfiguration;
+import com.spinningnoodle.mail.organizer.service.email.ImapConnectionPool;
+import com.spinningnoodle.mail.organizer.service.email.ImapService;
+import com.spinningnoodle.mail.organizer.service.email.UidCursor;
+import com.spinningnoodle.mail.organizer.service.store.MessageIdProgressStore;
+import com.spinningnoodle.mail.organizer.service.store.ProgressStore;
+import com.spinningnoodle.mail.organizer.service.store.ProgressStoreConfiguration;
+import com.spinningnoodle.mail.organizer.service.store.UidProgressStore;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.MessagingException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sorts the additional accounts listed under {@link ImapConfiguration#getAccounts()} next to the default one.
+ * Every account has its own connection pool, UID cursor, progress store and category folders, and runs its own
+ * pipeline; the classifier and its chat model are shared, with {@link LlmScheduler} dividing the chat model among
+ * the accounts by their weight. The backlog of each account is published as organizer.account.backlog.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "archive", name = "enabled", havingValue = "false", matchIfMissing = true)
+public class AccountService {
+    private final PipelineConfiguration configuration;
+    private final List<Account> accounts = new ArrayList<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private record Account(String name, ImapConnectionPool pool, ProgressStore progressStore,
+                           OrganizerService organizer) {
+    }
+
+    /**
+     * Constructor to connect to every additional account and build its pipeline.
+     *
+     * @param imapConfiguration the IMAP configuration, with the additional accounts
+     * @param classifierConfiguration the classifier configuration, whose categories become folders
+     * @param progressStoreConfiguration the progress store configuration, used for every account
+     * @param classifier the shared classifier
+     * @param classifyStage the shared classification stage
+     * @param llm the scheduler the accounts share the chat model through
+     * @param configuration the pipeline configuration
+     * @param metrics the pipeline metrics
+     * @param registry the registry the backlog of each account is published in
+     * @param scheduler the scheduler blocking work runs on
+     * @param defaultService the IMAP service of the default account
+     * @throws MessagingException if there is an error connecting to an account
+     * @throws IOException if there is an error reading the cursor or progress store of an account
+     */
+    public AccountService(ImapConfiguration imapConfiguration, ClassifierConfiguration classifierConfiguration,
+                          ProgressStoreConfiguration progressStoreConfiguration, Classifier classifier,
+                          ClassifyStage classifyStage, LlmScheduler llm, PipelineConfiguration configuration,
+                          PipelineMetrics metrics, MeterRegistry registry, Scheduler scheduler,
+                          ObjectProvider<ImapService> defaultService) throws MessagingException, IOException {
+        this.configuration = configuration;
+        llm.weight(imapConfiguration.getName(), imapConfiguration.getWeight());
+        defaultService.ifAvailable(service -> backlog(registry, imapConfiguration.getName(), service));
+        final var names = new HashSet<String>();
+        names.add(imapConfiguration.getName());
+        for (ImapConfiguration configured : imapConfiguration.getAccounts()) {
+            final var account = imapConfiguration.account(configured);
+            if (!names.add(account.getName())) {
+                throw new IllegalArgumentException("IMAP account " + account.getName() + " is configured twice");
+            }
+            final var pool = new ImapConnectionPool(account, classifierConfiguration, registry);
+            final var cursor = new UidCursor(account);
+            final var progressStore = progressStore(account, progressStoreConfiguration);
+            final var service = new ImapService(pool, cursor, configuration, metrics, scheduler);
+            final var moveStage = new MoveStage(progressStore, cursor, service, configuration, metrics, scheduler);
+            final var organizer = new OrganizerService(service, classifier, progressStore, cursor, classifyStage,
+                    moveStage, configuration, metrics, scheduler, (SpoolWorkers) null);
+            llm.weight(account.getName(), account.getWeight());
+            backlog(registry, account.getName(), service);
+            accounts.add(new Account(account.getName(), pool, progressStore, organizer));
+            log.info("Added IMAP account {} with weight {}", account.getName(), account.getWeight());
+        }
+    }
+
+    /**
+     * Opens the progress store of an additional account, of the configured type. The Message-ID log is prefixed
+     * with the account name; the UID store is already named after the username.
+     */
+    private static ProgressStore progressStore(ImapConfiguration account, ProgressStoreConfiguration shared)
+            throws IOException {
+        if ("uid".equals(shared.getType())) {
+            return new UidProgressStore(account, shared);
+        }
+        final var configuration = new ProgressStoreConfiguration();
+        configuration.setType(shared.getType());
+        configuration.setPath(ImapConfiguration.prefixed(account.getName(), shared.getPath()));
+        configuration.setSyncBatchSize(shared.getSyncBatchSize());
+        configuration.setSyncInterval(shared.getSyncInterval());
+        return new MessageIdProgressStore(configuration);
+    }
+
+    private static void backlog(MeterRegistry registry, String account, ImapService service) {
+        Gauge.builder("organizer.account.backlog", service, ImapService::backlog)
+                .description("Emails of the INBOX still to be sorted")
+                .tag("account", account)
+                .strongReference(true)
+                .register(registry);
+    }
+
+    // before OrganizerService, which keeps the event thread busy with the default account
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @EventListener(ApplicationReadyEvent.class)
+    public void init() {
+        if (configuration.isAutoStart()) {
+            start();
+        }
+    }
+
+    /**
+     * Starts sorting every additional account, each on its own thread.
+     */
+    public void start() {
+        for (Account account : accounts) {
+            executor.submit(() -> {
+                try {
+                    account.organizer().run();
+                } catch (MessagingException e) {
+                    log.error("Sorting IMAP account {} failed", account.name(), e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+        for (Account account : accounts) {
+            account.pool().close();
+            try {
+                account.progressStore().close();
+            } catch (IOException e) {
+                log.warn("Failed to close the progress store of IMAP account {}", account.name(), e);
+            }
+        }
+    }
+}
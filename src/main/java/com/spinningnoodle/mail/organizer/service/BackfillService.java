@@ -0,0 +1,108 @@
+package com.spinningnoodle.mail.organizer.service;
+
+import com.spinningnoodle.mail.organizer.classifier.Classifier;
+import com.spinningnoodle.mail.organizer.model.Email;
+import com.spinningnoodle.mail.organizer.service.archive.ArchiveConfiguration;
+import com.spinningnoodle.mail.organizer.service.archive.ArchiveSink;
+import com.spinningnoodle.mail.organizer.service.archive.ArchiveSource;
+import com.spinningnoodle.mail.organizer.service.archive.ArchivedMessage;
+import com.spinningnoodle.mail.organizer.service.archive.RawMessage;
+import jakarta.mail.MessagingException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.concurrent.Queues;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Classifies mail archived in mbox files and Maildir directories, offline, without touching the IMAP server.
+ * Messages are split out of the mapped files in order and parsed on every core, then go through the same
+ * classification as the INBOX; their categories are written to a manifest instead of being moved.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "archive", name = "enabled", havingValue = "true")
+public class BackfillService {
+    private final ArchiveSource source;
+    private final ArchiveSink sink;
+    private final Classifier classifier;
+    private final ClassifyStage classifyStage;
+    private final ArchiveConfiguration configuration;
+    private final PipelineConfiguration pipelineConfiguration;
+    private final PipelineMetrics metrics;
+
+    public BackfillService(ArchiveSource source, ArchiveSink sink, Classifier classifier, ClassifyStage classifyStage,
+                           ArchiveConfiguration configuration, PipelineConfiguration pipelineConfiguration,
+                           PipelineMetrics metrics) {
+        this.source = source;
+        this.sink = sink;
+        this.classifier = classifier;
+        this.classifyStage = classifyStage;
+        this.configuration = configuration;
+        this.pipelineConfiguration = pipelineConfiguration;
+        this.metrics = metrics;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void init() throws IOException {
+        if (pipelineConfiguration.isAutoStart()) {
+            run();
+        }
+    }
+
+    /**
+     * Classifies every message of the configured archives that the manifest does not list yet.
+     *
+     * @throws IOException if there is an error reading the manifest
+     */
+    public void run() throws IOException {
+        log.info("Started backfill of {}", configuration.getPaths());
+        final var written = sink.written();
+        source.messages()
+                .filter(raw -> !written.contains(raw.location()))
+                .parallel(Math.max(configuration.getParallelism(), 1))
+                .runOn(Schedulers.parallel(), Queues.XS_BUFFER_SIZE)
+                .flatMap(raw -> Mono.fromCallable(() -> parse(raw))
+                        .onErrorResume(e -> {
+                            log.warn("Skipping unreadable message at {}: {}", raw.location(), e.getMessage());
+                            return Mono.empty();
+                        }))
+                .sequential()
+                .transform(classifyStage::apply)
+                .doOnNext(emailWithCategory -> {
+                    final var email = emailWithCategory.email();
+                    log.info("{} Category: {} from:{}  subject: {}", ((ArchivedMessage) email.message()).raw().location(),
+                            emailWithCategory.category(), email.sender(), email.subject());
+                    try {
+                        sink.write(email, emailWithCategory.category());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    metrics.moved(List.of(email));
+                })
+                .then()
+                .block();
+        log.info("Finished backfill");
+    }
+
+    /**
+     * Parses the headers and, when the classifier needs it, the body of an archived message.
+     */
+    private Email parse(RawMessage raw) throws MessagingException, IOException {
+        final var email = source.email(raw);
+        metrics.fetched(email);
+        if (!classifier.needsBody(email)) {
+            return email;
+        }
+        final var parsed = email.withBody(classifier.bodyLimits());
+        metrics.parsed(parsed);
+        return parsed;
+    }
+}
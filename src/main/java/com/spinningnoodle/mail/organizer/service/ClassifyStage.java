@@ -0,0 +1,111 @@
+package com.spinningnoodle.mail.organizer.service;
+
+import com.spinningnoodle.mail.organizer.classifier.Classifier;
+import com.spinningnoodle.mail.organizer.model.Email;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.util.retry.Retry;
+
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Classifies parsed emails, one prompt each or several per prompt when the classifier batches, whatever the
+ * emails were read from.
+ */
+@Slf4j
+@Component
+public class ClassifyStage {
+    private final Classifier classifier;
+    private final PipelineConfiguration configuration;
+    private final PipelineMetrics metrics;
+    private final Scheduler scheduler;
+
+    public ClassifyStage(Classifier classifier, PipelineConfiguration configuration, PipelineMetrics metrics,
+                         Scheduler scheduler) {
+        this.classifier = classifier;
+        this.configuration = configuration;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Classifies emails one prompt each or, when the classifier batches, several emails per prompt.
+     * A failure fails the whole Flux.
+     *
+     * @param parsed the emails, ready to be classified
+     * @return a Flux of the emails with their category, in the order they came in
+     */
+    public Flux<EmailWithCategory> apply(Flux<Email> parsed) {
+        return apply(parsed, null);
+    }
+
+    /**
+     * Classifies emails like {@link #apply(Flux)}, but hands each email that cannot be classified to a callback
+     * and carries on with the others. When a batch prompt fails, its emails are classified one by one, so only
+     * the emails that fail on their own are handed over. Unless the failure {@link #repeats(Throwable) repeats},
+     * an email is retried up to {@link PipelineConfiguration#getMaxAttempts()} times with exponential backoff first.
+     *
+     * @param parsed the emails, ready to be classified
+     * @param failed called with each email that failed and its failure, or null to fail the whole Flux
+     * @return a Flux of the emails classified, in the order they came in
+     */
+    public Flux<EmailWithCategory> apply(Flux<Email> parsed, BiConsumer<Email, Throwable> failed) {
+        if (classifier.batchSize() <= 1) {
+            return parsed.flatMapSequential(mail -> single(mail, failed), configuration.getClassifyConcurrency());
+        }
+        return parsed
+                .bufferTimeout(classifier.batchSize(), classifier.batchWindow())
+                .flatMapSequential(batch ->
+                        metrics.timed(PipelineMetrics.CLASSIFY, classifier.classify(batch))
+                                .doOnNext(categories -> metrics.processed(PipelineMetrics.CLASSIFY, categories.size()))
+                                .flatMapIterable(categories -> IntStream.range(0, batch.size())
+                                        .mapToObj(i -> new EmailWithCategory(batch.get(i), categories.get(i)))
+                                        .toList())
+                                .onErrorResume(e -> failed != null, e -> Flux.fromIterable(batch)
+                                        .concatMap(mail -> single(mail, failed))), configuration.getClassifyConcurrency());
+    }
+
+    /**
+     * Whether classifying an email failed in a way that asking again will not fix, such as a reply that cannot be
+     * parsed, rather than the chat model being unavailable.
+     *
+     * @param failure the failure
+     * @return true if the failure repeats
+     */
+    public static boolean repeats(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof JsonProcessingException || cause instanceof IllegalArgumentException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Mono<EmailWithCategory> single(Email mail, BiConsumer<Email, Throwable> failed) {
+        // deferred, so a retry asks again instead of replaying a shared classification that failed
+        final var classified = Mono.defer(() -> metrics.timed(PipelineMetrics.CLASSIFY, classifier.classify(mail)))
+                .doOnNext(c -> metrics.processed(PipelineMetrics.CLASSIFY, 1))
+                .map(c -> new EmailWithCategory(mail, c));
+        if (failed == null) {
+            return classified;
+        }
+        return classified
+                .retryWhen(Retry.backoff(Math.max(configuration.getMaxAttempts() - 1, 0), configuration.getRetryBackoff())
+                        .scheduler(scheduler)
+                        .filter(e -> !repeats(e))
+                        .doBeforeRetry(signal -> {
+                            log.warn("Classifying {} failed, retrying: {}", mail.messageId(), signal.failure().getMessage());
+                            metrics.retried(PipelineMetrics.CLASSIFY);
+                        })
+                        .onRetryExhaustedThrow((spec, signal) -> signal.failure()))
+                .onErrorResume(e -> {
+                    failed.accept(mail, e);
+                    return Mono.empty();
+                });
+    }
+}
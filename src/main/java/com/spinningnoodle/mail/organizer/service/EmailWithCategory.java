@@ -0,0 +1,6 @@
+package com.spinningnoodle.mail.organizer.service;
+
+import com.spinningnoodle.mail.organizer.model.Email;
+
+public record EmailWithCategory(Email email, String category) {
+}
@@ -0,0 +1,174 @@
+package com.spinningnoodle.mail.organizer.service;
+
+import com.spinningnoodle.mail.organizer.model.Email;
+import com.spinningnoodle.mail.organizer.service.email.ImapService;
+import com.spinningnoodle.mail.organizer.service.email.UidCursor;
+import com.spinningnoodle.mail.organizer.service.store.ProgressStore;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Moves classified emails in batches: one MOVE over a message set per target folder instead of one per email.
+ * Progress is committed only once the batch containing an email has been moved. When a batch move fails, its
+ * emails are moved one by one with bounded retries, and an email that keeps failing is given up on as a dead letter.
+ */
+@Slf4j
+@Component
+public class MoveStage {
+    private static final String OTHER = "Other";
+    private final ProgressStore progressStore;
+    private final UidCursor cursor;
+    // null while reading archives, which are never moved
+    private final ImapService emailService;
+    private final PipelineConfiguration configuration;
+    private final PipelineMetrics metrics;
+    private final Scheduler scheduler;
+
+    @Autowired
+    public MoveStage(ProgressStore progressStore, UidCursor cursor, ObjectProvider<ImapService> emailService,
+                     PipelineConfiguration configuration, PipelineMetrics metrics, Scheduler scheduler) {
+        this(progressStore, cursor, emailService.getIfAvailable(), configuration, metrics, scheduler);
+    }
+
+    /**
+     * Constructor for the move stage of one account, see {@link AccountService}.
+     */
+    public MoveStage(ProgressStore progressStore, UidCursor cursor, ImapService emailService,
+                     PipelineConfiguration configuration, PipelineMetrics metrics, Scheduler scheduler) {
+        this.progressStore = progressStore;
+        this.cursor = cursor;
+        this.emailService = emailService;
+        this.configuration = configuration;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Buffers classified emails by category and flushes each buffer when it is full or its window ends.
+     *
+     * @param classified the classified emails
+     * @return a Flux of the emails whose move has been committed
+     */
+    public Flux<EmailWithCategory> apply(Flux<EmailWithCategory> classified) {
+        return classified
+                .groupBy(EmailWithCategory::category)
+                .flatMap(group -> group.bufferTimeout(configuration.getMoveBatchSize(), configuration.getMoveWindow()))
+                .flatMap(batch -> Mono.fromCallable(() -> metrics.timer(PipelineMetrics.MOVE).recordCallable(() -> flush(batch)))
+                        .subscribeOn(scheduler), configuration.getMoveConcurrency())
+                .flatMapIterable(committed -> committed);
+    }
+
+    /**
+     * Moves one category's batch and commits the moved emails to the progress store.
+     *
+     * @param batch emails sharing the same category
+     * @return the emails that were moved and committed
+     */
+    List<EmailWithCategory> flush(List<EmailWithCategory> batch) {
+        final var category = batch.get(0).category();
+        // an account may leave a category out, its emails then stay in the INBOX like Other
+        if (OTHER.equals(category) || !batch.get(0).email().folderConfig().folderMap().containsKey(category)) {
+            commit(batch);
+            return batch;
+        }
+        // messages can only be moved together when they come from the same open folder
+        final var bySource = batch.stream().collect(Collectors.groupingBy(
+                e -> e.email().message().getFolder(), LinkedHashMap::new, Collectors.toList()));
+        final var committed = new ArrayList<EmailWithCategory>(batch.size());
+        bySource.forEach((source, emails) -> committed.addAll(move(source, category, emails)));
+        return committed;
+    }
+
+    private List<EmailWithCategory> move(Folder source, String category, List<EmailWithCategory> emails) {
+        final var messages = emails.stream().map(e -> e.email().message()).toArray(Message[]::new);
+        final var target = emails.get(0).email().folderConfig().folderMap().get(category);
+        try {
+            ((IMAPFolder) source).moveMessages(messages, target);
+            log.info("Moved {} emails to {}", messages.length, category);
+            commit(emails);
+            return emails;
+        } catch (MessagingException e) {
+            log.warn("Batch move of {} emails to {} failed, moving one by one", messages.length, category, e);
+            return moveIndividually(category, emails);
+        }
+    }
+
+    private List<EmailWithCategory> moveIndividually(String category, List<EmailWithCategory> emails) {
+        final var committed = new ArrayList<EmailWithCategory>(emails.size());
+        for (EmailWithCategory emailWithCategory : emails) {
+            if (moveWithRetries(emailWithCategory.email(), category)) {
+                committed.add(emailWithCategory);
+            }
+        }
+        commit(committed);
+        return committed;
+    }
+
+    /**
+     * Moves a single email, retrying connection failures up to {@link PipelineConfiguration#getMaxAttempts()}
+     * times with exponential backoff on a reconnected INBOX. An email that still fails, or is refused by the
+     * server, is given up on as a dead letter.
+     *
+     * @param email the email to move
+     * @param category the folder to move it to
+     * @return true if it was moved
+     */
+    private boolean moveWithRetries(Email email, String category) {
+        var current = email;
+        var backoff = configuration.getRetryBackoff();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                current.moveTo(category);
+                return true;
+            } catch (MessagingException e) {
+                if (attempt >= configuration.getMaxAttempts() || emailService == null || !ImapService.isTransient(e)) {
+                    deadLetter(current, e);
+                    return false;
+                }
+                log.warn("Failed to move {} to {}, retrying in {}: {}", email.messageId(), category, backoff, e.getMessage());
+                metrics.retried(PipelineMetrics.MOVE);
+            }
+            try {
+                Thread.sleep(backoff.toMillis());
+                backoff = backoff.multipliedBy(2);
+                current = emailService.refresh(current);
+            } catch (InterruptedException e) {
+                // left uncommitted so that it is picked up again on the next run
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (MessagingException e) {
+                log.warn("Failed to look up {} again: {}", email.messageId(), e.getMessage());
+            }
+        }
+    }
+
+    private void deadLetter(Email email, MessagingException failure) {
+        log.error("Giving up on moving {}", email.messageId(), failure);
+        progressStore.deadLetter(email, PipelineMetrics.MOVE, failure);
+        cursor.commit(email);
+        metrics.deadLettered(PipelineMetrics.MOVE);
+        email.release();
+    }
+
+    private void commit(List<EmailWithCategory> emails) {
+        final List<Email> committed = emails.stream().map(EmailWithCategory::email).toList();
+        committed.forEach(progressStore::process);
+        cursor.commit(committed);
+        metrics.moved(committed);
+        committed.forEach(Email::release);
+    }
+}
@@ -3,92 +3,249 @@ package com.spinningnoodle.mail.organizer.service;
 import com.spinningnoodle.mail.organizer.classifier.Classifier;
 import com.spinningnoodle.mail.organizer.model.Email;
 import com.spinningnoodle.mail.organizer.service.email.ImapService;
-import com.spinningnoodle.mail.organizer.service.store.MessageIdProgressStore;
+import com.spinningnoodle.mail.organizer.service.email.UidCursor;
+import com.spinningnoodle.mail.organizer.service.store.ProgressStore;
 import jakarta.mail.MessagingException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 import reactor.util.function.Tuples;
+import reactor.util.retry.Retry;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Component
 @Slf4j
+// reading archives replaces the IMAP pipeline, see BackfillService
+@ConditionalOnProperty(prefix = "archive", name = "enabled", havingValue = "false", matchIfMissing = true)
 public class OrganizerService {
     private final ImapService emailService;
     private final Classifier classifier;
-    private final MessageIdProgressStore progressStore;
+    private final ProgressStore progressStore;
+    private final UidCursor cursor;
+    private final ClassifyStage classifyStage;
+    private final MoveStage moveStage;
+    private final PipelineConfiguration configuration;
+    private final PipelineMetrics metrics;
+    private final Scheduler scheduler;
+    // present when spool.enabled, classification and moves then run from the spool
+    private final SpoolWorkers spoolWorkers;
 
-    public OrganizerService(ImapService emailService, Classifier classifier, MessageIdProgressStore progressStore) {
+    @Autowired
+    public OrganizerService(ImapService emailService, Classifier classifier, ProgressStore progressStore,
+                            UidCursor cursor, ClassifyStage classifyStage, MoveStage moveStage,
+                            PipelineConfiguration configuration, PipelineMetrics metrics, Scheduler scheduler,
+                            ObjectProvider<SpoolWorkers> spoolWorkers) {
+        this(emailService, classifier, progressStore, cursor, classifyStage, moveStage, configuration, metrics,
+                scheduler, spoolWorkers.getIfAvailable());
+    }
+
+    /**
+     * Constructor for the pipeline of one account, see {@link AccountService}. Without spool workers, emails are
+     * classified and moved in memory.
+     */
+    public OrganizerService(ImapService emailService, Classifier classifier, ProgressStore progressStore,
+                            UidCursor cursor, ClassifyStage classifyStage, MoveStage moveStage,
+                            PipelineConfiguration configuration, PipelineMetrics metrics, Scheduler scheduler,
+                            SpoolWorkers spoolWorkers) {
         this.emailService = emailService;
         this.classifier = classifier;
         this.progressStore = progressStore;
+        this.cursor = cursor;
+        this.classifyStage = classifyStage;
+        this.moveStage = moveStage;
+        this.configuration = configuration;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+        this.spoolWorkers = spoolWorkers;
     }
 
     @EventListener(ApplicationReadyEvent.class)
-    public void init() throws MessagingException {
+    public void init() throws MessagingException, InterruptedException {
+        if (configuration.isAutoStart()) {
+            run();
+        }
+    }
+
+    /**
+     * Works through the backlog of the INBOX and then, in follow mode, keeps sorting new mail.
+     * Reconnects and carries on whenever the pipeline fails.
+     *
+     * @throws MessagingException if there is an error reconnecting to the IMAP store
+     * @throws InterruptedException if interrupted while waiting for the spool workers
+     */
+    public void run() throws MessagingException, InterruptedException {
         log.info("Started work");
+        if (spoolWorkers != null) {
+            spoolWorkers.start();
+        }
+        boolean backlogCleared = false;
         boolean completed = false;
         do {
             try {
-                emailService.retrieve()
-                        .filter(email -> !progressStore.hasBeenProcessed(email))
-                        .onErrorContinue((throwable, o) -> {
-                            log.warn("Error when reading mail {}", throwable.getMessage(), throwable);
-                        })
-                        .flatMap(e -> {
-
-                            try {
-                                if (classifier.needsBody()) {
-                                    return Mono.just(e.withBody());
-                                } else {
-                                    return Mono.just(e);
-                                }
-                            } catch (MessagingException | IOException ex) {
-                                // since it can't encode...
-                                progressStore.process(e);
-                                return Mono.error(ex);
-                            }
-                        })
-                        .flatMap(mail ->
-                                classifier
-                                        .classify(mail)
-                                        .map(c -> new EmailWithCategory(mail, c)))
-                        .doOnNext(emailWithCategory -> {
-                            final var email = emailWithCategory.email;
-                            final var category = emailWithCategory.category;
-                            log.info("{} Category: {} date: {} from:{}  subject: {}",
-                                    email.messageNumber(), category, email.date().toLocalDate(), email.sender(),
-                                    email.subject());
-                            if (!classifier.dryRun()) {
-                                try {
-                                    if (!category.equals("Other")) {
-                                        email.moveTo(category);
-                                    }
-                                    progressStore.process(email);
-                                } catch (MessagingException e) {
-                                    progressStore.process(email);
-                                    // we can continue, but at least recycle connection?
-                                    throw new RuntimeException(e);
-                                }
-                            }
-                        })
-                        .then()
-                        .doAfterTerminate(() -> {
-                            log.info("Finished work");
-                        })
-                        .block();
+                if (!backlogCleared) {
+                    // checked against the progress store a fetched chunk at a time, not a whole UID range
+                    process(emailService.retrieve().buffer(configuration.getFetchChunk()))
+                            .doAfterTerminate(() -> {
+                                log.info("Finished work");
+                            })
+                            .block();
+                    backlogCleared = true;
+                }
+                if (configuration.isFollow()) {
+                    log.info("Following the INBOX for new mail");
+                    process(emailService.follow()).block();
+                }
                 completed = true;
             } catch (Exception e) {
                 log.error("Encountered an exception, continuing", e);
                 emailService.reconnect();
             }
         } while (!completed);
+        if (spoolWorkers != null) {
+            spoolWorkers.finish();
+        }
+    }
+
+    /**
+     * Parses, classifies and moves batches of emails, skipping those the progress store has already seen.
+     * With the spool enabled, the parsed emails are only appended to the spool.
+     *
+     * @param batches the emails to work on, in batches
+     * @return a Mono completing once every email has been worked on, or spooled
+     */
+    private Mono<Void> process(Flux<List<Email>> batches) {
+        if (spoolWorkers != null) {
+            return spoolWorkers.spool(parsed(batches));
+        }
+        return parsed(batches)
+                // an email that cannot be classified costs that email, not the pipeline
+                .transform(parsed -> classifyStage.apply(parsed, this::unclassified))
+                .doOnNext(emailWithCategory -> {
+                    final var email = emailWithCategory.email();
+                    final var category = emailWithCategory.category();
+                    log.info("{} Category: {} date: {} from:{}  subject: {}",
+                            email.messageNumber(), category, email.date().toLocalDate(), email.sender(),
+                            email.subject());
+                })
+                // the body is not needed to move the email, only to classify it
+                .map(emailWithCategory -> new EmailWithCategory(emailWithCategory.email().withoutBody(),
+                        emailWithCategory.category()))
+                .transform(classified -> classifier.dryRun()
+                        ? classified.doOnNext(emailWithCategory -> emailWithCategory.email().release())
+                        : moveStage.apply(classified))
+                .then();
+    }
+
+    /**
+     * Parses batches of emails, skipping those the progress store has already seen.
+     *
+     * @param batches the emails to work on, in batches
+     * @return a Flux of the emails, ready to be classified
+     */
+    private Flux<Email> parsed(Flux<List<Email>> batches) {
+        return batches
+                // one batch at a time, so no more emails are fetched than the pipeline asks for
+                .concatMapIterable(this::unprocessed, 1)
+                .onErrorContinue((throwable, o) -> {
+                    log.warn("Error when reading mail {}", throwable.getMessage(), throwable);
+                })
+                .flatMapSequential(this::parse, configuration.getParseConcurrency());
+    }
+
+    /**
+     * Filters out the emails of a batch that the progress store has seen, committing them to the cursor.
+     *
+     * @param batch the fetched emails
+     * @return the emails still to be worked on
+     */
+    private List<Email> unprocessed(List<Email> batch) {
+        final var unprocessed = progressStore.unprocessed(batch);
+        if (unprocessed.size() < batch.size()) {
+            final var todo = new HashSet<>(unprocessed);
+            cursor.commit(batch.stream().filter(email -> !todo.contains(email)).toList());
+        }
+        return unprocessed;
     }
 
-    private record EmailWithCategory(Email email, String category) {}
+    /**
+     * Downloads and parses the body on the worker scheduler when the classifier needs it.
+     * Connection failures are retried up to {@link PipelineConfiguration#getMaxAttempts()} times with exponential
+     * backoff, looking the email up again on a reconnected INBOX. An email that still fails, or cannot be parsed
+     * at all, is given up on as a dead letter while the pipeline carries on.
+     *
+     * @param email the email to parse
+     * @return a Mono emitting the email, with its body if needed, or empty when it was given up on
+     */
+    private Mono<Email> parse(Email email) {
+        if (!classifier.needsBody(email)) {
+            return Mono.just(email);
+        }
+        final var current = new AtomicReference<>(email);
+        return metrics.timed(PipelineMetrics.PARSE, Mono.fromCallable(() -> current.get().withBody(classifier.bodyLimits()))
+                        .retryWhen(Retry.backoff(Math.max(configuration.getMaxAttempts() - 1, 0), configuration.getRetryBackoff())
+                                .scheduler(scheduler)
+                                .filter(ImapService::isTransient)
+                                .doBeforeRetry(signal -> {
+                                    log.warn("Parsing {} failed, retrying: {}", email.messageId(), signal.failure().getMessage());
+                                    metrics.retried(PipelineMetrics.PARSE);
+                                    try {
+                                        current.set(emailService.refresh(current.get()));
+                                    } catch (MessagingException e) {
+                                        throw new RuntimeException(e);
+                                    }
+                                })
+                                .onRetryExhaustedThrow((spec, signal) -> signal.failure())))
+                .subscribeOn(scheduler)
+                .doOnNext(metrics::parsed)
+                .onErrorResume(ex -> {
+                    deadLetter(current.get(), PipelineMetrics.PARSE, ex);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Handles an email the classify stage could not classify. Only a failure that repeats, such as a reply that
+     * cannot be parsed, makes it a dead letter. When the chat model is unavailable, the email is left uncommitted,
+     * so the cursor stays before it and the next run classifies it again.
+     *
+     * @param email the email
+     * @param failure the last failure
+     */
+    private void unclassified(Email email, Throwable failure) {
+        if (ClassifyStage.repeats(failure)) {
+            deadLetter(email, PipelineMetrics.CLASSIFY, failure);
+            return;
+        }
+        log.error("Classifying {} failed, leaving it for the next run", email.messageId(), failure);
+        metrics.deferred(PipelineMetrics.CLASSIFY);
+        email.release();
+    }
+
+    /**
+     * Gives up on an email: records it as a dead letter in the progress store and lets the cursor move past it.
+     *
+     * @param email the email
+     * @param stage the stage it kept failing in
+     * @param failure the last failure
+     */
+    private void deadLetter(Email email, String stage, Throwable failure) {
+        log.error("Giving up on {} in stage {}", email.messageId(), stage, failure);
+        progressStore.deadLetter(email, stage, failure);
+        cursor.commit(email);
+        metrics.deadLettered(stage);
+        email.release();
+    }
 }
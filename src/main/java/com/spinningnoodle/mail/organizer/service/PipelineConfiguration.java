@@ -0,0 +1,41 @@
+package com.spinningnoodle.mail.organizer.service;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+@ConfigurationProperties(prefix = "pipeline")
+@Data
+public class PipelineConfiguration {
+    // start organizing once the application is ready; turned off to drive the pipeline from a harness
+    private boolean autoStart = true;
+    // batches fetched ahead of the one being processed
+    private int prefetchBatches = 1;
+    // most messages fetched with one UID FETCH; fewer when downstream asks for fewer
+    private int fetchChunk = 100;
+    // emails whose bodies are downloaded and parsed at the same time
+    private int parseConcurrency = 4;
+    // emails sent to the LLM at the same time
+    private int classifyConcurrency = 4;
+    // move batches flushed at the same time
+    private int moveConcurrency = 1;
+    // classified emails are moved per target folder once this many are buffered...
+    private int moveBatchSize = 100;
+    // ...or once this window has passed since the first one arrived
+    private Duration moveWindow = Duration.ofSeconds(5);
+    // keep running after the backlog and sort new mail as it arrives
+    private boolean follow;
+    // how long a single IMAP IDLE may last before it is renewed
+    private Duration idleTimeout = Duration.ofMinutes(25);
+    // how often to check for new mail when the server has no IDLE
+    private Duration pollInterval = Duration.ofMinutes(1);
+    // attempts per email at fetching its body, classifying or moving it, and per fetched range, before giving up
+    private int maxAttempts = 3;
+    // wait before the first retry, doubled for every further one
+    private Duration retryBackoff = Duration.ofSeconds(1);
+    // how often a one-line throughput summary per stage is logged
+    private Duration summaryInterval = Duration.ofMinutes(1);
+}
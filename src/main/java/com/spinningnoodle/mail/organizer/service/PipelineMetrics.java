@@ -0,0 +1,206 @@
+package com.spinningnoodle.mail.organizer.service;
+
+import com.spinningnoodle.mail.organizer.model.Email;
+import com.spinningnoodle.mail.organizer.service.store.ProgressStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.MessagingException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers and counters per pipeline stage, published through Micrometer, plus a periodic one-line throughput
+ * summary in the log so the slowest stage stands out.
+ */
+@Slf4j
+@Component
+public class PipelineMetrics {
+    public static final String FETCH = "fetch";
+    public static final String PARSE = "parse";
+    public static final String CLASSIFY = "classify";
+    public static final String MOVE = "move";
+    private static final List<String> STAGES = List.of(FETCH, PARSE, CLASSIFY, MOVE);
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer> timers = new HashMap<>();
+    private final Map<String, Counter> messages = new HashMap<>();
+    private final DistributionSummary messageBytes;
+    private final DistributionSummary bodyCharacters;
+    private final Timer messageLatency;
+    private final ScheduledExecutorService reporter;
+    // what the previous summary saw, to report the difference; only touched by the reporter thread
+    private final Map<String, Double> previous = new HashMap<>();
+
+    public PipelineMetrics(MeterRegistry registry, ProgressStore progressStore, PipelineConfiguration configuration) {
+        this.registry = registry;
+        for (String stage : STAGES) {
+            timers.put(stage, Timer.builder("organizer.stage")
+                    .description("Time spent per batch or email in a pipeline stage")
+                    .tag("stage", stage)
+                    .publishPercentileHistogram()
+                    .register(registry));
+            messages.put(stage, Counter.builder("organizer.messages")
+                    .description("Emails that went through a pipeline stage")
+                    .tag("stage", stage)
+                    .register(registry));
+        }
+        messageBytes = DistributionSummary.builder("organizer.message.size")
+                .description("RFC822 size of fetched emails")
+                .baseUnit("bytes")
+                .register(registry);
+        bodyCharacters = DistributionSummary.builder("organizer.body.length")
+                .description("Characters of body text extracted for the prompt")
+                .baseUnit("characters")
+                .register(registry);
+        messageLatency = Timer.builder("organizer.message.latency")
+                .description("Time from fetching an email until its move is committed")
+                .publishPercentiles(0.5, 0.99)
+                .publishPercentileHistogram()
+                .register(registry);
+        Gauge.builder("organizer.progress-store.size", progressStore, ProgressStore::size)
+                .description("Emails recorded as processed")
+                .register(registry);
+        long interval = configuration.getSummaryInterval().toMillis();
+        reporter = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("pipeline-summary").factory());
+        reporter.scheduleAtFixedRate(() -> summarize(interval / 1000.0), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Times a stage from subscription until the Mono terminates.
+     *
+     * @param stage the stage
+     * @param work the work of the stage
+     * @return the timed Mono
+     */
+    public <T> Mono<T> timed(String stage, Mono<T> work) {
+        return Mono.defer(() -> {
+            final var sample = Timer.start(registry);
+            return work.doFinally(signal -> sample.stop(timers.get(stage)));
+        });
+    }
+
+    public Timer timer(String stage) {
+        return timers.get(stage);
+    }
+
+    /**
+     * Counts emails that completed a stage.
+     *
+     * @param stage the stage
+     * @param count the number of emails
+     */
+    public void processed(String stage, int count) {
+        messages.get(stage).increment(count);
+    }
+
+    public void fetched(Email email) {
+        processed(FETCH, 1);
+        try {
+            final var size = email.message().getSize();
+            if (size >= 0) {
+                messageBytes.record(size);
+            }
+        } catch (MessagingException e) {
+            log.debug("No size for {}", email.messageId(), e);
+        }
+    }
+
+    public void parsed(Email email) {
+        processed(PARSE, 1);
+        bodyCharacters.record(email.body() == null ? 0 : email.body().length());
+    }
+
+    /**
+     * Counts moved emails, in total and per account, and records how long each took since it was fetched.
+     *
+     * @param emails the emails whose move was committed
+     */
+    public void moved(List<Email> emails) {
+        processed(MOVE, emails.size());
+        final var now = System.nanoTime();
+        for (Email email : emails) {
+            if (email.account() != null) {
+                registry.counter("organizer.account.messages", "account", email.account()).increment();
+            }
+            if (email.fetchedAt() > 0) {
+                messageLatency.record(now - email.fetchedAt(), TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Counts a retry of a single email or fetched range.
+     *
+     * @param stage the stage that is retried
+     */
+    public void retried(String stage) {
+        registry.counter("organizer.retries", "stage", stage).increment();
+    }
+
+    /**
+     * Counts an email left uncommitted for the next run.
+     *
+     * @param stage the stage it failed in
+     */
+    public void deferred(String stage) {
+        registry.counter("organizer.deferred", "stage", stage).increment();
+    }
+
+    /**
+     * Counts an email given up on.
+     *
+     * @param stage the stage it kept failing in
+     */
+    public void deadLettered(String stage) {
+        registry.counter("organizer.dead-letters", "stage", stage).increment();
+    }
+
+    private void summarize(double seconds) {
+        try {
+            final var line = new StringBuilder("Throughput over ").append(Math.round(seconds)).append("s:");
+            for (String stage : STAGES) {
+                final var count = delta(stage + ".count", messages.get(stage).count());
+                final var timer = timers.get(stage);
+                final var calls = delta(stage + ".calls", timer.count());
+                final var time = delta(stage + ".time", timer.totalTime(TimeUnit.MILLISECONDS));
+                line.append(String.format(" %s %.0f (%.1f/s, %.0fms avg)", stage, count, count / seconds,
+                        calls == 0 ? 0 : time / calls));
+            }
+            line.append(String.format("; llm tokens %.0f in, %.0f out",
+                    delta("tokens.prompt", tokens("prompt")),
+                    delta("tokens.generation", tokens("generation"))));
+            log.info(line.toString());
+        } catch (RuntimeException e) {
+            log.warn("Failed to summarize pipeline metrics", e);
+        }
+    }
+
+    private double tokens(String kind) {
+        return registry.find("organizer.llm.tokens").tag("kind", kind).summaries().stream()
+                .mapToDouble(DistributionSummary::totalAmount)
+                .sum();
+    }
+
+    private double delta(String key, double value) {
+        final var before = previous.getOrDefault(key, 0.0);
+        previous.put(key, value);
+        return value - before;
+    }
+
+    @PreDestroy
+    public void close() {
+        reporter.shutdown();
+    }
+}
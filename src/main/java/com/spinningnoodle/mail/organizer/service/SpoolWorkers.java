@@ -0,0 +1,276 @@
+package com.spinningnoodle.mail.organizer.service;
+
+import com.spinningnoodle.mail.organizer.classifier.Classifier;
+import com.spinningnoodle.mail.organizer.model.Email;
+import com.spinningnoodle.mail.organizer.service.email.ImapService;
+import com.spinningnoodle.mail.organizer.service.email.UidCursor;
+import com.spinningnoodle.mail.organizer.service.spool.EmailSpool;
+import com.spinningnoodle.mail.organizer.service.spool.SpoolConfiguration;
+import com.spinningnoodle.mail.organizer.service.store.ProgressStore;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.MessagingException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the pipeline through the {@link EmailSpool}: fetched and parsed emails are appended to the spool, and a
+ * classification worker and a move worker each consume it from their own committed offset. A failing worker
+ * retries its records after {@link SpoolConfiguration#getRetryInterval()} without holding up the others.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "spool", name = "enabled", havingValue = "true")
+public class SpoolWorkers {
+    private final EmailSpool spool;
+    private final ImapService emailService;
+    private final UidCursor cursor;
+    private final ProgressStore progressStore;
+    private final ClassifyStage classifyStage;
+    private final MoveStage moveStage;
+    private final Classifier classifier;
+    private final SpoolConfiguration configuration;
+    private final PipelineMetrics metrics;
+    private final Scheduler scheduler;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    // cleared once nothing more will be appended, so the workers stop when they have caught up
+    private volatile boolean fetching;
+    private volatile boolean classifying;
+    private Future<?> classifyWorker;
+    private Future<?> moveWorker;
+
+    public SpoolWorkers(EmailSpool spool, ImapService emailService, UidCursor cursor, ProgressStore progressStore,
+                        ClassifyStage classifyStage, MoveStage moveStage, Classifier classifier,
+                        SpoolConfiguration configuration, PipelineMetrics metrics, Scheduler scheduler) {
+        this.spool = spool;
+        this.emailService = emailService;
+        this.cursor = cursor;
+        this.progressStore = progressStore;
+        this.classifyStage = classifyStage;
+        this.moveStage = moveStage;
+        this.classifier = classifier;
+        this.configuration = configuration;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts the classification and move workers, which keep consuming the spool until {@link #finish()}.
+     */
+    public synchronized void start() {
+        fetching = true;
+        classifying = true;
+        classifyWorker = executor.submit(this::classify);
+        moveWorker = executor.submit(this::move);
+    }
+
+    /**
+     * Appends parsed emails to the spool in chunks. Once a chunk is on disk, the UID cursor moves past it and
+     * what the IMAP messages cached is released, so a restart never downloads these emails again.
+     *
+     * @param parsed the emails, parsed as far as the classifier needs
+     * @return a Mono completing once every email is in the spool
+     */
+    public Mono<Void> spool(Flux<Email> parsed) {
+        return parsed
+                .bufferTimeout(configuration.getChunk(), configuration.getPollInterval())
+                .concatMap(batch -> Mono.fromCallable(() -> {
+                    spool.fetched(batch);
+                    cursor.commit(batch);
+                    batch.forEach(Email::release);
+                    return batch;
+                }).subscribeOn(scheduler))
+                .then();
+    }
+
+    /**
+     * Lets the workers stop once they have consumed everything appended, and waits for them.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void finish() throws InterruptedException {
+        fetching = false;
+        try {
+            classifyWorker.get();
+            moveWorker.get();
+        } catch (ExecutionException e) {
+            log.error("Spool worker failed", e.getCause());
+        }
+    }
+
+    /**
+     * Classifies the fetched emails a chunk at a time and appends their categories to the spool. Emails given up on
+     * as dead letters are left out; when the chat model is unavailable, the chunk is retried after
+     * {@link SpoolConfiguration#getRetryInterval()}.
+     */
+    private void classify() {
+        var offset = spool.committed(EmailSpool.CLASSIFY);
+        try {
+            while (true) {
+                try {
+                    final var batch = spool.fetched(offset, configuration.getChunk());
+                    if (batch.isEmpty()) {
+                        if (!fetching && offset >= spool.fetchedEnd()) {
+                            return;
+                        }
+                        sleep(configuration.getPollInterval());
+                        continue;
+                    }
+                    final var offsets = new IdentityHashMap<Email, Long>();
+                    batch.forEach(record -> offsets.put(record.value(), record.offset()));
+                    final var unavailable = Collections.synchronizedList(new ArrayList<Throwable>());
+                    final var classified = classifyStage.apply(Flux.fromIterable(batch).map(EmailSpool.Spooled::value),
+                                    (email, failure) -> unclassified(email, failure, unavailable))
+                            .collectList()
+                            .block();
+                    if (!unavailable.isEmpty()) {
+                        // the chat model is unavailable: the whole chunk is classified again
+                        throw new IllegalStateException("Classifying from the spool failed", unavailable.get(0));
+                    }
+                    spool.classified(classified.stream()
+                            .map(emailWithCategory -> new EmailSpool.Spooled<>(offsets.get(emailWithCategory.email()),
+                                    emailWithCategory.category()))
+                            .toList());
+                    offset = batch.get(batch.size() - 1).offset() + 1;
+                    spool.commitClassify(offset);
+                } catch (IOException | RuntimeException e) {
+                    // e.g. the chat model is down: fetching and moving carry on meanwhile
+                    log.error("Classifying from the spool failed, retrying in {}", configuration.getRetryInterval(), e);
+                    sleep(configuration.getRetryInterval());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            classifying = false;
+        }
+    }
+
+    /**
+     * Handles an email of the spool that could not be classified. A failure that repeats, such as a reply that
+     * cannot be parsed, makes it a dead letter, which gets no category and is never moved; any other failure is
+     * collected, so the chunk is classified again later.
+     *
+     * @param email the email
+     * @param failure the last failure
+     * @param unavailable the failures to retry the chunk for
+     */
+    private void unclassified(Email email, Throwable failure, List<Throwable> unavailable) {
+        if (!ClassifyStage.repeats(failure)) {
+            unavailable.add(failure);
+            return;
+        }
+        log.error("Giving up on {} in stage {}", email.messageId(), PipelineMetrics.CLASSIFY, failure);
+        progressStore.deadLetter(email, PipelineMetrics.CLASSIFY, failure);
+        metrics.deadLettered(PipelineMetrics.CLASSIFY);
+    }
+
+    /**
+     * Moves the classified emails a chunk at a time, looking them up in the INBOX again by UID. The move offset only
+     * advances past records whose move was committed; from the first email left unmoved, the chunk is tried again
+     * after {@link SpoolConfiguration#getRetryInterval()}, also after a restart.
+     */
+    private void move() {
+        var offset = spool.committed(EmailSpool.MOVE);
+        try {
+            while (true) {
+                try {
+                    final var batch = spool.classified(offset, configuration.getChunk());
+                    if (batch.isEmpty()) {
+                        if (!classifying && offset >= spool.classifiedEnd()) {
+                            return;
+                        }
+                        sleep(configuration.getPollInterval());
+                        continue;
+                    }
+                    final Set<Long> unmoved = classifier.dryRun()
+                            ? Set.of()
+                            : moveBatch(batch.stream().map(EmailSpool.Spooled::value).toList());
+                    final var failed = batch.stream()
+                            .filter(record -> unmoved.contains(record.value().email().uid()))
+                            .findFirst();
+                    offset = failed.map(EmailSpool.Spooled::offset).orElse(batch.get(batch.size() - 1).offset() + 1);
+                    final var next = spool.classified(offset, 1);
+                    spool.commitMove(offset, next.isEmpty() ? spool.committed(EmailSpool.CLASSIFY) : next.get(0).value().fetchedOffset());
+                    if (failed.isPresent()) {
+                        log.warn("{} emails were not moved, retrying them in {}", unmoved.size(), configuration.getRetryInterval());
+                        sleep(configuration.getRetryInterval());
+                        reconnect();
+                    }
+                } catch (MessagingException | IOException | RuntimeException e) {
+                    // e.g. the IMAP server is down: classification carries on meanwhile
+                    log.error("Moving from the spool failed, retrying in {}", configuration.getRetryInterval(), e);
+                    sleep(configuration.getRetryInterval());
+                    reconnect();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Moves emails read back from the spool. Emails no longer in the INBOX count as done, and so do emails given up
+     * on as dead letters, which the progress store already records.
+     *
+     * @param batch the classified emails
+     * @return the UIDs of the emails that are still to be moved
+     * @throws MessagingException if there is an error looking the emails up
+     */
+    private Set<Long> moveBatch(List<EmailSpool.Classified> batch) throws MessagingException {
+        final var categories = new HashMap<Long, String>();
+        batch.forEach(classified -> categories.put(classified.email().uid(), classified.category()));
+        final var resolved = emailService.resolve(batch.stream().map(EmailSpool.Classified::email).toList());
+        final var byCategory = resolved.stream()
+                .map(email -> new EmailWithCategory(email, categories.get(email.uid())))
+                .collect(Collectors.groupingBy(EmailWithCategory::category, LinkedHashMap::new, Collectors.toList()));
+        final var moved = new HashSet<Long>();
+        for (List<EmailWithCategory> emails : byCategory.values()) {
+            metrics.timer(PipelineMetrics.MOVE).record(() -> moveStage.flush(emails))
+                    .forEach(committed -> moved.add(committed.email().uid()));
+        }
+        final var unmoved = new HashSet<Long>();
+        for (Email email : resolved) {
+            if (!moved.contains(email.uid()) && !progressStore.hasBeenProcessed(email)) {
+                unmoved.add(email.uid());
+            }
+        }
+        return unmoved;
+    }
+
+    private void reconnect() {
+        try {
+            emailService.reconnect();
+        } catch (MessagingException e) {
+            log.warn("Reconnecting for moves failed", e);
+        }
+    }
+
+    private static void sleep(Duration duration) throws InterruptedException {
+        Thread.sleep(duration.toMillis());
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+}
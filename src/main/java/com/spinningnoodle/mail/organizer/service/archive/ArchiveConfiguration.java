@@ -0,0 +1,26 @@
+package com.spinningnoodle.mail.organizer.service.archive;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Configuration
+@ConfigurationProperties(prefix = "archive")
+@Data
+public class ArchiveConfiguration {
+    // classify the archives below instead of the IMAP INBOX
+    private boolean enabled;
+    // mbox files and Maildir directories to read
+    private List<String> paths = new ArrayList<>();
+    // where the category of every message is written, one tab separated line each; also what a rerun skips
+    private String manifest = "archiveManifest.tsv";
+    // optional directory that gets one Maildir per category with a copy of each message
+    private String output;
+    // messages parsed at the same time, best left at one per core
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    // bytes of an mbox file mapped at once; grown for larger messages
+    private int mapWindow = 256 * 1024 * 1024;
+}
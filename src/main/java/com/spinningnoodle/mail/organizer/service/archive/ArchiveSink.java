@@ -0,0 +1,127 @@
+package com.spinningnoodle.mail.organizer.service.archive;
+
+import com.spinningnoodle.mail.organizer.model.Email;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the category of each archived email in a manifest instead of moving it, and optionally sorts a copy of
+ * it into a Maildir per category. The manifest doubles as the progress of a backfill: a rerun skips what it lists.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "archive", name = "enabled", havingValue = "true")
+public class ArchiveSink {
+    private final Path manifest;
+    private final Path output;
+    private final AtomicLong delivered = new AtomicLong();
+    private BufferedWriter writer;
+
+    public ArchiveSink(ArchiveConfiguration configuration) {
+        this.manifest = Path.of(configuration.getManifest());
+        this.output = configuration.getOutput() == null || configuration.getOutput().isBlank()
+                ? null : Path.of(configuration.getOutput());
+    }
+
+    /**
+     * Reads the locations of the messages the manifest already lists.
+     *
+     * @return the locations
+     * @throws IOException if there is an error reading the manifest
+     */
+    public Set<String> written() throws IOException {
+        final var written = new HashSet<String>();
+        if (Files.exists(manifest)) {
+            try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final var tab = line.indexOf('\t');
+                    if (tab > 0) {
+                        written.add(line.substring(0, tab));
+                    }
+                }
+            }
+            log.info("{} messages already in {}", written.size(), manifest);
+        }
+        return written;
+    }
+
+    /**
+     * Appends location, category and Message-ID of an email to the manifest and, with an output directory
+     * configured, delivers a copy of the message to the Maildir of its category first.
+     *
+     * @param email an email read from an archive
+     * @param category its category
+     * @throws IOException if there is an error writing the manifest or the copy
+     */
+    public void write(Email email, String category) throws IOException {
+        final var raw = ((ArchivedMessage) email.message()).raw();
+        if (output != null) {
+            deliver(raw, category);
+        }
+        synchronized (this) {
+            if (writer == null) {
+                writer = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(raw.location() + "\t" + category + "\t" + (email.messageId() == null ? "" : email.messageId()));
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    /**
+     * Delivers a message the Maildir way: written to tmp, then moved to new. Messages from a Maildir are hard
+     * linked where possible, keeping their file name and flags.
+     */
+    private void deliver(RawMessage raw, String category) throws IOException {
+        final var maildir = output.resolve(category);
+        for (String folder : new String[]{"tmp", "new", "cur"}) {
+            Files.createDirectories(maildir.resolve(folder));
+        }
+        if (raw.file() != null) {
+            final var target = maildir.resolve(raw.file().getParent().getFileName()).resolve(raw.file().getFileName());
+            try {
+                Files.createLink(target, raw.file());
+                return;
+            } catch (FileAlreadyExistsException e) {
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                log.debug("Cannot link {}, copying it", raw.file(), e);
+            }
+        }
+        final var name = System.currentTimeMillis() + "." + ProcessHandle.current().pid() + "_" + delivered.incrementAndGet()
+                + ".organizer";
+        final var tmp = maildir.resolve("tmp").resolve(name);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            final var content = raw.content().duplicate();
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+        Files.move(tmp, maildir.resolve("new").resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+}
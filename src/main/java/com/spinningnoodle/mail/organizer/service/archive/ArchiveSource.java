@@ -0,0 +1,81 @@
+package com.spinningnoodle.mail.organizer.service.archive;
+
+import com.spinningnoodle.mail.organizer.model.Email;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Reads emails from local mbox files and Maildir directories instead of the IMAP server.
+ * Messages are split out of memory-mapped files in order, then parsed by the caller on as many threads as it
+ * likes with {@link #email(RawMessage)}.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "archive", name = "enabled", havingValue = "true")
+public class ArchiveSource {
+    private static final Set<String> MAILDIR_FOLDERS = Set.of("cur", "new");
+    private final ArchiveConfiguration configuration;
+    private final Session session = Session.getInstance(new Properties());
+
+    public ArchiveSource(ArchiveConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Splits every configured archive into its messages: mbox files at their "From " lines, Maildir directories
+     * (and their subfolders) into the files under cur and new.
+     *
+     * @return a Flux of the messages, read as they are requested
+     */
+    public Flux<RawMessage> messages() {
+        return Flux.fromIterable(configuration.getPaths())
+                .map(Path::of)
+                .concatMap(path -> {
+                    log.info("Reading {}", path);
+                    return Files.isDirectory(path) ? maildir(path) : MboxSplitter.split(path, configuration.getMapWindow());
+                });
+    }
+
+    /**
+     * Parses the headers of a message into an Email; the body is only read when the email is parsed with
+     * {@link Email#withBody}.
+     *
+     * @param raw the message
+     * @return the email
+     * @throws MessagingException if the headers cannot be parsed
+     * @throws IOException if the message cannot be read
+     */
+    public Email email(RawMessage raw) throws MessagingException, IOException {
+        return Email.from(new ArchivedMessage(session, raw), null);
+    }
+
+    private Flux<RawMessage> maildir(Path root) {
+        return Flux.using(() -> Files.walk(root), files -> Flux.fromStream(files
+                        .filter(Files::isRegularFile)
+                        .filter(file -> file.getParent() != null
+                                && MAILDIR_FOLDERS.contains(file.getParent().getFileName().toString()))), Stream::close)
+                .map(ArchiveSource::map);
+    }
+
+    private static RawMessage map(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new RawMessage(file.toString(), channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.spinningnoodle.mail.organizer.service.archive;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * A message read from a local archive. Only its headers are parsed up front; the content stays in the mapped
+ * file until the body is read.
+ */
+public class ArchivedMessage extends MimeMessage {
+    private final RawMessage raw;
+
+    /**
+     * Parses the headers of a raw message.
+     *
+     * @param session the session, used for MIME parsing properties only
+     * @param raw the message as split out of the archive
+     * @throws MessagingException if the headers cannot be parsed
+     */
+    public ArchivedMessage(Session session, RawMessage raw) throws MessagingException {
+        super(session, new MappedInputStream(raw.content().duplicate()));
+        this.raw = raw;
+    }
+
+    public RawMessage raw() {
+        return raw;
+    }
+}
@@ -0,0 +1,80 @@
+package com.spinningnoodle.mail.organizer.service.archive;
+
+import jakarta.mail.internet.SharedInputStream;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a message straight from a memory-mapped region. Being a {@link SharedInputStream}, MimeMessage and
+ * MimeMultipart keep sub-streams of it for the content and parts instead of copying them onto the heap.
+ */
+class MappedInputStream extends InputStream implements SharedInputStream {
+    private final ByteBuffer buffer;
+    private int mark;
+
+    /**
+     * Creates a stream over a mapped message.
+     *
+     * @param buffer the message, from position 0 to its limit
+     */
+    MappedInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        final var count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        final var count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public void reset() {
+        buffer.position(mark);
+    }
+
+    @Override
+    public long getPosition() {
+        return buffer.position();
+    }
+
+    @Override
+    public InputStream newStream(long start, long end) {
+        final var limit = end < 0 ? buffer.limit() : (int) end;
+        return new MappedInputStream(buffer.slice((int) start, limit - (int) start));
+    }
+}
@@ -0,0 +1,153 @@
+package com.spinningnoodle.mail.organizer.service.archive;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SynchronousSink;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Splits an mbox file into messages at the "From " lines that separate them, without copying: the file is mapped
+ * a window at a time and each message is a slice of the window, which is only replaced once it ends before the
+ * next message does. Only the bytes up to the next separator are
+ * looked at; the message is parsed later, on another thread.
+ */
+@Slf4j
+class MboxSplitter {
+    private static final byte[] SEPARATOR = {'F', 'r', 'o', 'm', ' '};
+    // a mapping cannot exceed the range of an int
+    private static final int MAX_WINDOW = Integer.MAX_VALUE - 8;
+
+    private final Path path;
+    private final int window;
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer mapped;
+    private long mappedStart;
+    // start of the next message, at its "From " line
+    private long position;
+    // how often the file was mapped
+    private int mappings;
+
+    MboxSplitter(Path path, int window) throws IOException {
+        this.path = path;
+        this.window = Math.min(Math.max(window, 64 * 1024), MAX_WINDOW);
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    /**
+     * Emits the messages of an mbox file in order, mapping the file as messages are requested.
+     *
+     * @param path the mbox file
+     * @param window the bytes to map at once
+     * @return a Flux of the messages
+     */
+    static Flux<RawMessage> split(Path path, int window) {
+        return Flux.using(() -> new MboxSplitter(path, window),
+                splitter -> Flux.generate(splitter::next),
+                MboxSplitter::close);
+    }
+
+    void next(SynchronousSink<RawMessage> sink) {
+        try {
+            if (position >= size) {
+                sink.complete();
+                return;
+            }
+            // the current mapping usually holds several messages; only map again when it ends before this one does
+            if (mapped == null || position < mappedStart || position >= mappedStart + mapped.limit()) {
+                map(position, (int) Math.min(size - position, window));
+            }
+            while (true) {
+                final var start = (int) (position - mappedStart);
+                final var end = mappedStart + mapped.limit();
+                // the message starts after its "From " line
+                final var content = startsWithSeparator(start) ? lineEnd(start) : start;
+                final var separator = content < 0 ? -1 : nextSeparator(content);
+                if (separator >= 0 || end >= size) {
+                    final var contentStart = content < 0 ? mapped.limit() : content;
+                    final var contentEnd = separator >= 0 ? separator : mapped.limit();
+                    sink.next(new RawMessage(path + ":" + position,
+                            mapped.slice(contentStart, contentEnd - contentStart), null));
+                    position = mappedStart + contentEnd;
+                    return;
+                }
+                final var held = end - position;
+                if (held >= MAX_WINDOW) {
+                    log.warn("Message at {} in {} is larger than {} bytes, skipping the rest of the file", position, path, MAX_WINDOW);
+                    position = size;
+                    sink.complete();
+                    return;
+                }
+                // the message does not end within the mapping: map a larger one starting at the message
+                map(position, (int) Math.min(size - position, Math.min(Math.max(window, held * 2), MAX_WINDOW)));
+            }
+        } catch (IOException e) {
+            sink.error(new UncheckedIOException(e));
+        }
+    }
+
+    /**
+     * Maps length bytes from start, replacing the current mapping; slices of earlier mappings stay valid.
+     */
+    private void map(long start, int length) throws IOException {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        mappedStart = start;
+        mappings++;
+    }
+
+    private boolean startsWithSeparator(int index) {
+        if (index + SEPARATOR.length > mapped.limit()) {
+            return false;
+        }
+        for (int i = 0; i < SEPARATOR.length; i++) {
+            if (mapped.get(index + i) != SEPARATOR[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index after the end of the line at index, or -1 when the line does not end in the mapping
+     */
+    private int lineEnd(int index) {
+        for (int i = index; i < mapped.limit(); i++) {
+            if (mapped.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the next line starting with "From ", or -1 when there is none in the mapping
+     */
+    private int nextSeparator(int from) {
+        for (int i = Math.max(from, 1); i < mapped.limit(); i++) {
+            if (mapped.get(i - 1) == '\n' && mapped.get(i) == 'F' && startsWithSeparator(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int mappings() {
+        return mappings;
+    }
+
+    void close() {
+        try {
+            // mapped slices stay readable once the channel is closed
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close {}", path, e);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.spinningnoodle.mail.organizer.service.archive;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * A message split out of an archive but not parsed yet.
+ *
+ * @param location where the message was found: the Maildir file, or the mbox file and byte offset
+ * @param content the mapped bytes of the message
+ * @param file the Maildir file holding just this message, or null for a message in an mbox file
+ */
+public record RawMessage(String location, ByteBuffer content, Path file) {
+}
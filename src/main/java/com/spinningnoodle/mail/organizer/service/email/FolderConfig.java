@@ -6,5 +6,5 @@ import org.eclipse.angus.mail.imap.IMAPFolder;
 import java.util.Map;
 
 @Builder
-public record FolderConfig(Map<String, IMAPFolder> folderMap) {
+public record FolderConfig(String account, Map<String, IMAPFolder> folderMap) {
 }
@@ -0,0 +1,43 @@
+package com.spinningnoodle.mail.organizer.service.email;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Receives the Jakarta Mail protocol trace and counts the IMAP commands the client sends, per command name,
+ * as organizer.imap.commands. Nothing of the trace is kept or logged.
+ */
+class ImapCommandCounter extends OutputStream {
+    // client commands are tagged A1, A2, ...; tagged server completions are OK, NO or BAD
+    private static final Pattern COMMAND = Pattern.compile("^A\\d+ (?!OK\\b|NO\\b|BAD\\b)([A-Za-z]+)");
+    private final MeterRegistry registry;
+    private final StringBuilder line = new StringBuilder();
+
+    ImapCommandCounter(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        if (b == '\n') {
+            final var matcher = COMMAND.matcher(line);
+            if (matcher.find()) {
+                registry.counter("organizer.imap.commands", "command", matcher.group(1).toUpperCase(Locale.ROOT)).increment();
+            }
+            line.setLength(0);
+        } else if (line.length() < 64) {
+            // only the start of a line is needed
+            line.append((char) b);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            write(b[i]);
+        }
+    }
+}
@@ -5,7 +5,13 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 
 @Configuration
@@ -13,10 +19,76 @@ import java.util.Objects;
 @ConfigurationProperties(prefix = "imap")
 @Data
 public class ImapConfiguration {
+    // names the account in metrics and in the files of additional accounts
+    private String name = "default";
     private String username;
     private String password;
     private String host;
     private int port;
     private boolean ssl;
+    // IMAP connections batches are fetched on in parallel
+    private int connections = 2;
+    // UIDVALIDITY and last committed UID of the INBOX, to resume from
+    private String cursorPath = "uidCursor.txt";
+    // count the IMAP commands sent, per command, as organizer.imap.commands; costs a protocol trace
+    private boolean trace;
+    // connections unused this long get a NOOP, and are reconnected when closed or their folders are gone
+    private Duration keepaliveInterval = Duration.ofMinutes(5);
+    // share of the chat model this account gets while other accounts are waiting for it too
+    private double weight = 1.0;
+    // categories moved into folders in this account; empty for all, the others are left in the INBOX
+    private Set<String> categories = new HashSet<>();
+    // further accounts sorted alongside this one, each inheriting the settings it leaves out
+    private List<ImapConfiguration> accounts = new ArrayList<>();
 
+    /**
+     * Returns the settings of an additional account: an account without a host of its own uses the host, port and
+     * SSL setting of this one, and its cursor file is prefixed with the account name.
+     *
+     * @param account the additional account, as configured
+     * @return the complete configuration of the account
+     */
+    public ImapConfiguration account(ImapConfiguration account) {
+        final var merged = new ImapConfiguration();
+        merged.setName(account.getName());
+        merged.setUsername(account.getUsername());
+        merged.setPassword(account.getPassword());
+        merged.setHost(account.getHost() != null ? account.getHost() : host);
+        merged.setPort(account.getPort() != 0 ? account.getPort() : port);
+        merged.setSsl(account.getHost() != null ? account.isSsl() : ssl);
+        merged.setConnections(account.getConnections());
+        merged.setCursorPath(prefixed(account.getName(), cursorPath));
+        merged.setTrace(trace);
+        merged.setKeepaliveInterval(keepaliveInterval);
+        merged.setWeight(account.getWeight());
+        merged.setCategories(account.getCategories());
+        return merged;
+    }
+
+    /**
+     * Prefixes the file name of a path with an account name, e.g. alice.uidCursor.txt.
+     *
+     * @param name the account name
+     * @param path the path
+     * @return the prefixed path
+     */
+    public static String prefixed(String name, String path) {
+        final var file = Path.of(path);
+        return file.resolveSibling(name + "." + file.getFileName()).toString();
+    }
+
+    /**
+     * Returns the categories that get a folder in this account.
+     *
+     * @param all the configured categories
+     * @return the categories of this account
+     */
+    public Set<String> folders(Set<String> all) {
+        if (categories.isEmpty()) {
+            return all;
+        }
+        final var folders = new HashSet<>(all);
+        folders.retainAll(categories);
+        return folders;
+    }
 }
@@ -0,0 +1,146 @@
+package com.spinningnoodle.mail.organizer.service.email;
+
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * One authenticated IMAP connection with its INBOX opened read-write and the category folders resolved on it.
+ * Messages fetched through a connection can only be moved through the same connection.
+ */
+@Slf4j
+public class ImapConnection {
+    private final int id;
+    private final Session session;
+    private final ImapConfiguration configuration;
+    private final Set<String> folders;
+    private volatile Store store;
+    private volatile IMAPFolder inbox;
+    private volatile FolderConfig folderConfig;
+    // System.nanoTime() when the INBOX was last handed out
+    private volatile long lastUsed = System.nanoTime();
+
+    ImapConnection(int id, Session session, ImapConfiguration configuration, Set<String> folders) {
+        this.id = id;
+        this.session = session;
+        this.configuration = configuration;
+        this.folders = folders;
+    }
+
+    /**
+     * Connects to the IMAP store, opens the INBOX folder and makes sure the category folders exist.
+     *
+     * @throws MessagingException if there is an error connecting to the IMAP store or opening the folder
+     */
+    void open() throws MessagingException {
+        Store connected = session.getStore("imap");
+        connected.connect(configuration.getUsername(), configuration.getPassword());
+        IMAPFolder opened = (IMAPFolder) connected.getFolder("INBOX");
+        opened.open(Folder.READ_WRITE);
+        folderConfig = retrieveConfig(configuration.getName(), opened, folders);
+        inbox = opened;
+        store = connected;
+        log.info("Opened IMAP connection {}", id);
+    }
+
+    /**
+     * Closes this connection and opens it again, leaving the other connections of the pool alone.
+     *
+     * @throws MessagingException if there is an error reconnecting to the IMAP store or opening the folder
+     */
+    void reconnect() throws MessagingException {
+        log.info("Reconnecting IMAP connection {}", id);
+        close();
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        open();
+    }
+
+    boolean isHealthy() {
+        return store != null && store.isConnected() && inbox.isOpen();
+    }
+
+    /**
+     * Sends a NOOP when the connection has not been used for a while, so that the server does not drop it, and
+     * checks that the INBOX is still open and the category folders still exist.
+     *
+     * @param idle how long the connection must have been unused before it gets a NOOP
+     * @return false when the connection has gone stale and should be reconnected
+     */
+    boolean keepAlive(Duration idle) {
+        if (!isHealthy()) {
+            return false;
+        }
+        if (System.nanoTime() - lastUsed < idle.toNanos()) {
+            return true;
+        }
+        try {
+            // sends a NOOP on the selected INBOX
+            inbox.getMessageCount();
+            for (IMAPFolder folder : folderConfig.folderMap().values()) {
+                if (!folder.exists()) {
+                    log.warn("Folder {} is gone from IMAP connection {}", folder.getFullName(), id);
+                    return false;
+                }
+            }
+            lastUsed = System.nanoTime();
+            return inbox.isOpen();
+        } catch (MessagingException e) {
+            log.warn("NOOP failed on IMAP connection {}", id, e);
+            return false;
+        }
+    }
+
+    void close() {
+        try {
+            if (store != null) {
+                store.close();
+            }
+        } catch (MessagingException e) {
+            log.warn("Failed to close IMAP connection {}", id, e);
+        }
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public IMAPFolder inbox() {
+        lastUsed = System.nanoTime();
+        return inbox;
+    }
+
+    public FolderConfig folderConfig() {
+        return folderConfig;
+    }
+
+    private static FolderConfig retrieveConfig(String account, Folder rootFolder, Set<String> folders) throws MessagingException {
+        final var map = folders.stream().collect(Collectors.toMap(v -> v, v -> {
+            try {
+                return ensureFolder(v, rootFolder);
+            } catch (MessagingException e) {
+                throw new RuntimeException(e);
+            }
+        }));
+        return new FolderConfig(account, map);
+    }
+
+    private static IMAPFolder ensureFolder(String folderName, Folder inbox) throws MessagingException {
+        // create.
+        Folder folder = inbox.getFolder(folderName);
+        var created = folder.create(Folder.HOLDS_MESSAGES);
+        log.info("created folder {}: {}", folder, created);
+
+        return (IMAPFolder) folder;
+    }
+}
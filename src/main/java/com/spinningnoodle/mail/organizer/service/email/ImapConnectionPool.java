@@ -0,0 +1,165 @@
+package com.spinningnoodle.mail.organizer.service.email;
+
+import com.spinningnoodle.mail.organizer.model.ClassifierConfiguration;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small, fixed pool of IMAP connections so that batches can be fetched in parallel.
+ * Connections are reconnected individually, one at a time. Every {@link ImapConfiguration#getKeepaliveInterval()}
+ * connections left unused get a NOOP, and a connection found closed or missing a category folder is reconnected
+ * before the pipeline trips over it.
+ */
+@Slf4j
+@Component
+// no IMAP server is needed while reading archives
+@ConditionalOnProperty(prefix = "archive", name = "enabled", havingValue = "false", matchIfMissing = true)
+public class ImapConnectionPool {
+    private final List<ImapConnection> connections = new ArrayList<>();
+    private final Object reconnectLock = new Object();
+    private final ScheduledExecutorService keepalive;
+
+    /**
+     * Constructor to open {@link ImapConfiguration#getConnections()} connections.
+     *
+     * @param configuration the IMAP configuration
+     * @param classifierConfiguration the classifier configuration, whose categories become folders
+     * @param registry the registry IMAP commands are counted in when tracing
+     * @throws MessagingException if there is an error connecting to the IMAP store or opening the folder
+     */
+    public ImapConnectionPool(ImapConfiguration configuration, ClassifierConfiguration classifierConfiguration,
+                              MeterRegistry registry) throws MessagingException {
+        Session session = Session.getInstance(properties(configuration, classifierConfiguration));
+        if (configuration.isTrace()) {
+            // the protocol trace is only parsed to count commands, see ImapCommandCounter
+            session.setDebugOut(new PrintStream(new ImapCommandCounter(registry), true));
+            session.setDebug(true);
+        }
+        for (int i = 0; i < Math.max(configuration.getConnections(), 1); i++) {
+            ImapConnection connection = new ImapConnection(i, session, configuration,
+                    configuration.folders(classifierConfiguration.getFolders()));
+            connection.open();
+            connections.add(connection);
+        }
+        keepalive = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("imap-keepalive").factory());
+        final var interval = configuration.getKeepaliveInterval();
+        if (interval != null && interval.isPositive()) {
+            keepalive.scheduleWithFixedDelay(() -> keepAlive(interval), interval.toMillis(), interval.toMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void keepAlive(Duration idle) {
+        for (ImapConnection connection : connections) {
+            if (connection.keepAlive(idle)) {
+                continue;
+            }
+            try {
+                log.warn("IMAP connection {} has gone stale", connection.id());
+                reconnect(connection);
+            } catch (MessagingException | RuntimeException e) {
+                log.warn("Failed to reconnect IMAP connection {}, trying again in a while", connection.id(), e);
+            }
+        }
+    }
+
+    private static Properties properties(ImapConfiguration imapConfiguration, ClassifierConfiguration classifierConfiguration) {
+        // Set mail properties
+        Properties properties = new Properties();
+        properties.put("mail.store.protocol", "imap");
+        properties.put("mail.imap.host", imapConfiguration.getHost());
+        properties.put("mail.imap.port", imapConfiguration.getPort());
+        properties.put("mail.imap.ssl.enable", imapConfiguration.isSsl());
+        // read bodies with BODY[section]<offset.size> so only what is read is downloaded; like a full fetch, this
+        // still marks the email \Seen
+        properties.put("mail.imap.partialfetch", true);
+        if (classifierConfiguration.getMaxBodyBytes() > 0) {
+            properties.put("mail.imap.fetchsize", classifierConfiguration.getMaxBodyBytes());
+        }
+        return properties;
+    }
+
+    /**
+     * Returns the connection for a batch; batches are spread round robin over the pool.
+     *
+     * @param index the batch index
+     * @return the connection to use
+     */
+    public ImapConnection get(int index) {
+        return connections.get(Math.floorMod(index, connections.size()));
+    }
+
+    /**
+     * Returns the connection used for mailbox-wide commands such as listing UIDs.
+     *
+     * @return the first connection
+     */
+    public ImapConnection primary() {
+        return connections.get(0);
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    /**
+     * Reconnects a single connection. Reconnects are serialized so the server never sees a burst of logins.
+     *
+     * @param connection the connection to reconnect
+     * @throws MessagingException if there is an error reconnecting
+     */
+    public void reconnect(ImapConnection connection) throws MessagingException {
+        synchronized (reconnectLock) {
+            connection.reconnect();
+        }
+    }
+
+    /**
+     * Reconnects a single connection unless another thread already has, e.g. the keepalive.
+     *
+     * @param connection the connection to reconnect
+     * @throws MessagingException if there is an error reconnecting
+     */
+    public void reconnectIfUnhealthy(ImapConnection connection) throws MessagingException {
+        synchronized (reconnectLock) {
+            if (!connection.isHealthy()) {
+                connection.reconnect();
+            }
+        }
+    }
+
+    /**
+     * Reconnects, one after another, only the connections whose store or INBOX has been closed.
+     *
+     * @throws MessagingException if there is an error reconnecting
+     */
+    public void reconnectUnhealthy() throws MessagingException {
+        for (ImapConnection connection : connections) {
+            synchronized (reconnectLock) {
+                if (!connection.isHealthy()) {
+                    connection.reconnect();
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        keepalive.shutdownNow();
+        connections.forEach(ImapConnection::close);
+    }
+}
@@ -1,176 +1,387 @@
 package com.spinningnoodle.mail.organizer.service.email;
 
-import com.spinningnoodle.mail.organizer.model.ClassifierConfiguration;
 import com.spinningnoodle.mail.organizer.model.Email;
+import com.spinningnoodle.mail.organizer.service.PipelineConfiguration;
+import com.spinningnoodle.mail.organizer.service.PipelineMetrics;
 import jakarta.mail.*;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPStore;
+import org.eclipse.angus.mail.util.FolderClosedIOException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.io.IOException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.util.retry.Retry;
 
-import java.util.Properties;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 @Component
+@ConditionalOnProperty(prefix = "archive", name = "enabled", havingValue = "false", matchIfMissing = true)
 public class ImapService {
-    final ImapConfiguration configuration;
-    private final ClassifierConfiguration classifierConfiguration;
-    private volatile Store store;
-    private volatile Folder emailFolder;
-    private volatile FolderConfig folderConfig;
-    // which batch we last processed?
-    private volatile int batchNumber = readBatchNumber();
+    public static final int BATCH_SIZE = 1000;
+    private final ImapConnectionPool pool;
+    private final PipelineConfiguration pipelineConfiguration;
+    private final Scheduler scheduler;
+    private final UidCursor cursor;
+    private final PipelineMetrics metrics;
+    // where following the INBOX picks up once the backlog is done
+    private volatile long uidValidity;
+    private volatile long uidNext = 1;
+    // listed by retrieve() but not fetched yet
+    private final AtomicLong unfetched = new AtomicLong();
 
 
     /**
-     * Constructor to initialize ImapService with configuration and classifier configuration.
-     * Connects to the IMAP store and opens the INBOX folder.
+     * Constructor to initialize ImapService with its connection pool.
      *
-     * @param configuration the IMAP configuration
-     * @param classifierConfiguration the classifier configuration
-     * @throws MessagingException if there is an error connecting to the IMAP store or opening the folder
+     * @param pool the pool of IMAP connections with the INBOX opened
+     * @param cursor where the previous run left off
+     * @param pipelineConfiguration the pipeline configuration
+     * @param metrics the pipeline metrics
+     * @param scheduler the scheduler batches are fetched on
      */
-    public ImapService(ImapConfiguration configuration, ClassifierConfiguration classifierConfiguration) throws MessagingException {
-        this.configuration = configuration;
-        store = connect(configuration);
-        emailFolder = store.getFolder("INBOX");
-        emailFolder.open(Folder.READ_WRITE);
-        folderConfig = retrieveConfig(emailFolder, classifierConfiguration.getFolders());
-        this.classifierConfiguration = classifierConfiguration;
+    public ImapService(ImapConnectionPool pool, UidCursor cursor, PipelineConfiguration pipelineConfiguration,
+                       PipelineMetrics metrics, Scheduler scheduler) {
+        this.pool = pool;
+        this.cursor = cursor;
+        this.metrics = metrics;
+        this.pipelineConfiguration = pipelineConfiguration;
+        this.scheduler = scheduler;
     }
 
     /**
-     * Retrieves emails in batches and returns a Flux of Email objects.
+     * Retrieves the emails after the {@link UidCursor} in batches and returns a Flux of Email objects.
+     * Batches are UID ranges spread round robin over the connection pool. While one batch is being processed,
+     * up to {@link PipelineConfiguration#getPrefetchBatches()} following batches are already fetched.
      *
      * @return a Flux of Email objects
      * @throws MessagingException if there is an error retrieving the messages
      */
     public Flux<Email> retrieve() throws MessagingException {
 
-        int batchSize = 1000; // Define your preferred batch size
-        int totalMessages = emailFolder.getMessageCount();
-        return Flux.range(batchNumber, (totalMessages + batchSize - 1) / batchSize)
-                .concatMap(batch -> {
-                    int start = (batch - 1) * batchSize + 1;
-                    int end = Math.min(batch * batchSize, totalMessages);
-                    try {
-                        return retrieve(start, end).doOnComplete(() -> {
-                            batchNumber = Math.max(batch-1,1);  // we finished previous batch
-                            writeBatchNumber(batchNumber);
-                        });
-                    } catch (MessagingException e) {
-                        return Flux.error(e);
-                    }
-                });
+        int batchSize = BATCH_SIZE;
+        long[] uids = listUids(pool.primary());
+        int batches = (uids.length + batchSize - 1) / batchSize;
+        return Flux.range(0, batches)
+                .flatMapSequential(batch -> {
+                    long start = uids[batch * batchSize];
+                    long end = uids[Math.min((batch + 1) * batchSize, uids.length) - 1];
+                    return retrieve(pool.get(batch), start, end).subscribeOn(scheduler);
+                }, pipelineConfiguration.getPrefetchBatches() + 1)
+                // in UID order, since batches are emitted in sequence
+                .doOnNext(cursor::fetched)
+                .doOnNext(email -> unfetched.decrementAndGet());
     }
 
-    private void writeBatchNumber(int batchNumber) {
-        try {
-            Files.writeString(Paths.get("batch.txt"), String.valueOf(batchNumber-1));
-        } catch (IOException e) {
-            log.error("Failed to write batch number to batch.txt", e);
+    /**
+     * Lists the UIDs of the INBOX messages after the cursor with a single UID FETCH first:*, so restarting costs
+     * what is left to do rather than the size of the mailbox.
+     *
+     * @param connection the connection to list them on
+     * @return the UIDs, ascending
+     * @throws MessagingException if there is an error fetching the UIDs
+     */
+    private long[] listUids(ImapConnection connection) throws MessagingException {
+        IMAPFolder inbox = connection.inbox();
+        long first = cursor.next(inbox.getUIDValidity());
+        Message[] messages = inbox.getMessagesByUID(first, UIDFolder.LASTUID);
+        long[] uids = new long[messages.length];
+        int count = 0;
+        for (Message message : messages) {
+            long uid = inbox.getUID(message);
+            // first:* always includes the last message, even when its UID is below first
+            if (uid >= first) {
+                uids[count++] = uid;
+            }
         }
+        uids = Arrays.copyOf(uids, count);
+        unfetched.set(count);
+        log.info("{} messages after UID {}", uids.length, first - 1);
+        recordPosition(inbox, uids.length == 0 ? first : uids[uids.length - 1] + 1);
+        return uids;
     }
 
-    private int readBatchNumber() {
-        try {
-            var batchFilePath = Paths.get("batch.txt");
-            if (Files.exists(batchFilePath)) {
-                var content = Files.readString(batchFilePath).trim();
-                return content.isEmpty() ? 1 : Math.max(Integer.parseInt(content),1);
-            } else {
-                return 1;
-            }
-        } catch (IOException | NumberFormatException e) {
-            log.error("Failed to read batch number, defaulting to 1", e);
-            return 1;
-        }
+    /**
+     * Records UIDVALIDITY, UIDNEXT and, when supported, HIGHESTMODSEQ of the INBOX as listed, so that
+     * {@link #follow()} only has to look at messages that arrive afterwards.
+     *
+     * @param inbox the opened INBOX
+     * @param listedUidNext one past the highest UID that was listed
+     * @throws MessagingException if there is an error reading the mailbox status
+     */
+    private void recordPosition(IMAPFolder inbox, long listedUidNext) throws MessagingException {
+        uidValidity = inbox.getUIDValidity();
+        // some servers leave UIDNEXT out of the SELECT response
+        uidNext = Math.max(inbox.getUIDNext(), listedUidNext);
+        long highestModSeq = ((IMAPStore) inbox.getStore()).hasCapability("CONDSTORE") ? inbox.getHighestModSeq() : -1;
+        log.info("INBOX at UIDVALIDITY {} UIDNEXT {} HIGHESTMODSEQ {}", uidValidity, uidNext, highestModSeq);
     }
 
-    public Flux<Email> retrieve(int start, int end) throws MessagingException {
-        return Flux.create(sink -> {
+    /**
+     * Follows the INBOX after the backlog has been retrieved: waits for new mail with IMAP IDLE, or polls every
+     * {@link PipelineConfiguration#getPollInterval()} when the server has no IDLE, and emits only the messages
+     * with a UID at or above the recorded UIDNEXT. Never completes unless cancelled or the connection fails.
+     *
+     * @return a Flux emitting the newly arrived emails, one list per wake-up
+     */
+    public Flux<List<Email>> follow() {
+        return Flux.<List<Email>>create(sink -> {
             try {
-                log.info("Fetching messages from {} to {}", start, end);
-                Message[] messages = emailFolder.getMessages(start, end);
-                FetchProfile fp = new FetchProfile();
-                fp.add(FetchProfile.Item.ENVELOPE);
-                fp.add(FetchProfile.Item.CONTENT_INFO);
-                fp.add(IMAPFolder.FetchProfileItem.FLAGS);
-                fp.add(UIDFolder.FetchProfileItem.UID);
-                fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
-                emailFolder.fetch(messages, fp);
-                log.info("Starting sinking messages");
-                for (Message message : messages) {
-                    sink.next(Email.from(message, folderConfig));
+                while (!sink.isCancelled()) {
+                    ImapConnection connection = pool.primary();
+                    List<Email> arrived = arrivals(connection);
+                    if (!arrived.isEmpty()) {
+                        log.info("{} new messages arrived", arrived.size());
+                        sink.next(arrived);
+                    }
+                    waitForArrivals(connection.inbox());
                 }
-                sink.complete();
-                log.info("Finished sinking messages");
             } catch (MessagingException | IOException e) {
                 sink.error(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sink.complete();
             }
-        });
+        }).subscribeOn(scheduler).doOnNext(arrived -> arrived.forEach(cursor::fetched));
     }
 
-    private static Store connect(ImapConfiguration imapConfiguration) throws MessagingException {
+    private List<Email> arrivals(ImapConnection connection) throws MessagingException, IOException {
+        IMAPFolder inbox = connection.inbox();
+        if (inbox.getUIDValidity() != uidValidity) {
+            // the UIDs we recorded mean nothing anymore; the progress store filters what was already done
+            log.warn("UIDVALIDITY of the INBOX changed from {} to {}, looking at all messages", uidValidity, inbox.getUIDValidity());
+            uidValidity = inbox.getUIDValidity();
+            uidNext = 1;
+        }
+        // n:* always includes the last message, even when its UID is below n
+        Message[] messages = inbox.getMessagesByUID(uidNext, UIDFolder.LASTUID);
+        fetch(inbox, messages);
+        List<Email> emails = new ArrayList<>();
+        long next = uidNext;
+        for (Message message : messages) {
+            long uid = inbox.getUID(message);
+            if (uid >= uidNext) {
+                final var email = Email.from(message, connection.folderConfig());
+                metrics.fetched(email);
+                emails.add(email);
+                next = Math.max(next, uid + 1);
+            }
+        }
+        uidNext = next;
+        return emails;
+    }
 
-        // Set mail properties
-        Properties properties = new Properties();
-        properties.put("mail.store.protocol", "imap");
-        properties.put("mail.imap.host", imapConfiguration.getHost());
-        properties.put("mail.imap.port", imapConfiguration.getPort());
-        properties.put("mail.imap.ssl.enable", imapConfiguration.isSsl());
+    private void waitForArrivals(IMAPFolder inbox) throws MessagingException, InterruptedException {
+        if (!((IMAPStore) inbox.getStore()).hasCapability("IDLE")) {
+            Thread.sleep(pipelineConfiguration.getPollInterval().toMillis());
+            return;
+        }
+        // servers drop idle connections after 30 minutes, so end the IDLE before that with a NOOP
+        Disposable wakeUp = Mono.delay(pipelineConfiguration.getIdleTimeout())
+                .publishOn(scheduler)
+                .subscribe(tick -> wake(inbox));
+        try {
+            inbox.idle(true);
+        } finally {
+            wakeUp.dispose();
+        }
+    }
 
-        // Create a new session
-        Session session = Session.getDefaultInstance(properties, null);
+    private static void wake(IMAPFolder inbox) {
+        try {
+            // sends a NOOP, which ends the IDLE running on another thread
+            inbox.getMessageCount();
+        } catch (MessagingException e) {
+            log.debug("Failed to end IDLE", e);
+        }
+    }
 
-        // Connect to the store
-        Store store = session.getStore("imap");
-        store.connect(imapConfiguration.getUsername(), imapConfiguration.getPassword());
-        return store;
+    private static void fetch(IMAPFolder folder, Message[] messages) throws MessagingException {
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.ENVELOPE);
+        fp.add(FetchProfile.Item.CONTENT_INFO);
+        fp.add(IMAPFolder.FetchProfileItem.FLAGS);
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+        Email.HEADERS.forEach(fp::add);
+        folder.fetch(messages, fp);
     }
 
-    private FolderConfig retrieveConfig(Folder rootFolder, Set<String> folders) throws MessagingException {
-        // spam
-        final var builder = FolderConfig.builder();
-        final var map = folders.stream().collect(Collectors.toMap(v -> v, v -> {
+    /**
+     * Retrieves the messages of a UID range on one connection.
+     * If the connection has dropped, only that connection is reconnected and the rest of the range is fetched
+     * again, up to {@link PipelineConfiguration#getMaxAttempts()} times with exponential backoff.
+     *
+     * @param connection the connection to fetch on
+     * @param start the first UID of the range
+     * @param end the last UID of the range
+     * @return a Flux of Email objects
+     */
+    public Flux<Email> retrieve(ImapConnection connection, long start, long end) {
+        // where to pick up after a reconnect, so that emails already emitted are not emitted twice
+        final var resume = new AtomicLong(start);
+        return Flux.defer(() -> resume.get() > end ? Flux.<Email>empty() : fetchOnDemand(connection, resume.get(), end))
+                .doOnNext(email -> resume.set(email.uid() + 1))
+                .retryWhen(Retry.backoff(Math.max(pipelineConfiguration.getMaxAttempts() - 1, 0), pipelineConfiguration.getRetryBackoff())
+                .scheduler(scheduler)
+                .filter(ImapService::isTransient)
+                .doBeforeRetry(signal -> {
+                    log.warn("Fetching UID {} to {} failed, retrying: {}", resume.get(), end, signal.failure().getMessage());
+                    metrics.retried(PipelineMetrics.FETCH);
+                    try {
+                        // the keepalive may have reconnected it already
+                        pool.reconnectIfUnhealthy(connection);
+                    } catch (MessagingException e) {
+                        throw new RuntimeException(e);
+                    }
+                })
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure()));
+    }
+
+    /**
+     * Fetches a UID range chunk by chunk as downstream asks for emails. Each chunk is at most as large as the
+     * outstanding demand and {@link PipelineConfiguration#getFetchChunk()}, so only the emails the pipeline is
+     * ready for are fetched and held in memory, however large the range.
+     *
+     * @param connection the connection to fetch on
+     * @param start the first UID of the range
+     * @param end the last UID of the range
+     * @return a Flux of Email objects
+     */
+    private Flux<Email> fetchOnDemand(ImapConnection connection, long start, long end) {
+        return Flux.create(sink -> {
+            final IMAPFolder inbox;
+            final Message[] messages;
             try {
-                return ensureFolder(v, rootFolder);
+                log.info("Fetching messages with UID {} to {} on connection {}", start, end, connection.id());
+                inbox = connection.inbox();
+                // only the UIDs; envelopes and headers are fetched per chunk
+                messages = inbox.getMessagesByUID(start, end);
             } catch (MessagingException e) {
-                throw new RuntimeException(e);
+                sink.error(e);
+                return;
             }
-        }));
-        return new FolderConfig(map);
+            final var position = new AtomicInteger();
+            // a request made while a chunk is being emitted is served by the loop already running
+            final var work = new AtomicInteger();
+            sink.onRequest(requested -> {
+                if (work.getAndIncrement() != 0) {
+                    return;
+                }
+                try {
+                    do {
+                        while (!sink.isCancelled() && position.get() < messages.length && sink.requestedFromDownstream() > 0) {
+                            final var from = position.get();
+                            final var size = Math.min(sink.requestedFromDownstream(), pipelineConfiguration.getFetchChunk());
+                            final var chunk = Arrays.copyOfRange(messages, from, (int) Math.min(messages.length, from + size));
+                            metrics.timer(PipelineMetrics.FETCH).recordCallable(() -> {
+                                fetch(inbox, chunk);
+                                return chunk;
+                            });
+                            position.set(from + chunk.length);
+                            for (Message message : chunk) {
+                                final var email = Email.from(message, connection.folderConfig());
+                                metrics.fetched(email);
+                                sink.next(email);
+                            }
+                        }
+                        if (position.get() == messages.length) {
+                            log.info("Fetched messages with UID {} to {}", start, end);
+                            sink.complete();
+                        }
+                    } while (work.decrementAndGet() != 0);
+                } catch (Exception e) {
+                    sink.error(e);
+                }
+            });
+        });
     }
 
-    private IMAPFolder ensureFolder(String folderName, Folder inbox) throws MessagingException {
-        // create.
-        Folder folder = inbox.getFolder(folderName);
-        var created = folder.create(Folder.HOLDS_MESSAGES);
-        log.info("created folder {}: {}", folder, created);
+    /**
+     * Looks emails read back from the spool up in the INBOX again by UID, so they can be moved.
+     * Emails that are no longer there, or were fetched under another UIDVALIDITY, are left out.
+     *
+     * @param emails the emails, without IMAP message
+     * @return the emails still in the INBOX, with their message
+     * @throws MessagingException if there is an error fetching the messages
+     */
+    public List<Email> resolve(List<Email> emails) throws MessagingException {
+        ImapConnection connection = pool.primary();
+        IMAPFolder inbox = connection.inbox();
+        long uidValidity = inbox.getUIDValidity();
+        Message[] messages = inbox.getMessagesByUID(emails.stream().mapToLong(Email::uid).toArray());
+        List<Email> resolved = new ArrayList<>(emails.size());
+        for (int i = 0; i < messages.length; i++) {
+            final var email = emails.get(i);
+            if (messages[i] == null || email.uidValidity() != uidValidity) {
+                log.debug("{} is no longer in the INBOX", email.messageId());
+                continue;
+            }
+            resolved.add(email.toBuilder()
+                    .message(messages[i])
+                    .messageNumber(messages[i].getMessageNumber())
+                    .folderConfig(connection.folderConfig())
+                    .build());
+        }
+        return resolved;
+    }
+
+    /**
+     * Reconnects the connections that have gone stale and looks an email up again, so that a retry does not use
+     * a message of a closed folder.
+     *
+     * @param email the email to retry
+     * @return the email with a message of an open INBOX
+     * @throws MessagingException if there is an error reconnecting, or the email is no longer in the INBOX
+     */
+    public Email refresh(Email email) throws MessagingException {
+        reconnect();
+        final var resolved = resolve(List.of(email));
+        if (resolved.isEmpty()) {
+            throw new MessageRemovedException("UID " + email.uid() + " is no longer in the INBOX");
+        }
+        return resolved.get(0);
+    }
+
+    /**
+     * Tells whether a failure is worth retrying: the connection or folder was closed, or the network failed.
+     * Anything else, such as a message that cannot be parsed, fails the same way again.
+     *
+     * @param failure the failure
+     * @return true if retrying may succeed
+     */
+    public static boolean isTransient(Throwable failure) {
+        return failure instanceof FolderClosedException
+                || failure instanceof StoreClosedException
+                || failure instanceof FolderClosedIOException
+                || failure instanceof MessagingException && failure.getCause() instanceof IOException;
+    }
 
-        return (IMAPFolder) folder;
+    /**
+     * Returns how many emails of the INBOX are still to be sorted: those listed but not fetched yet and those
+     * fetched but not committed.
+     *
+     * @return the backlog of the account
+     */
+    public long backlog() {
+        return unfetched.get() + cursor.inFlight();
     }
 
     /**
-     * Reconnects to the IMAP store and reopens the INBOX folder.
+     * Reconnects the connections of the pool whose store or INBOX has been closed, one at a time.
      *
      * @throws MessagingException if there is an error reconnecting to the IMAP store or opening the folder
      */
     public void reconnect() throws MessagingException {
-        store.close();
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-        store = connect(configuration);
-        emailFolder = store.getFolder("INBOX");
-        emailFolder.open(Folder.READ_WRITE);
-        folderConfig = retrieveConfig(emailFolder, classifierConfiguration.getFolders());
+        pool.reconnectUnhealthy();
     }
 }
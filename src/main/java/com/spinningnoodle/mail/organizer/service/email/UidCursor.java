@@ -0,0 +1,133 @@
+package com.spinningnoodle.mail.organizer.service.email;
+
+import com.spinningnoodle.mail.organizer.model.Email;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Durable resume point of the INBOX: its UIDVALIDITY and the highest UID below which every fetched email has been
+ * committed. Emails are committed out of order, since moves are batched per category, so the cursor only advances
+ * past the lowest UID still in flight. The file is replaced atomically on every advance.
+ */
+@Slf4j
+@Component
+public class UidCursor {
+    private final Path path;
+    // guarded by this
+    private final NavigableSet<Long> inFlight = new TreeSet<>();
+    private long uidValidity;
+    private long lastUid;
+    private long highestFetched;
+
+    /**
+     * Constructor to initialize the cursor from its file, if any.
+     *
+     * @param configuration the IMAP configuration
+     * @throws IOException if there is an error reading the cursor file
+     */
+    public UidCursor(ImapConfiguration configuration) throws IOException {
+        this.path = Paths.get(configuration.getCursorPath());
+        if (Files.exists(path)) {
+            String[] content = Files.readString(path).trim().split("\\s+");
+            if (content.length == 2) {
+                uidValidity = Long.parseLong(content[0]);
+                lastUid = Long.parseLong(content[1]);
+                highestFetched = lastUid;
+                log.info("Resuming after UID {} of UIDVALIDITY {}", lastUid, uidValidity);
+            }
+        }
+    }
+
+    /**
+     * Returns the first UID still to be fetched, for a fresh listing of the INBOX. Emails fetched by an earlier
+     * listing but never committed, e.g. because the pipeline failed or left them for the next run, are fetched
+     * again from here, so they no longer hold the cursor back. When the mailbox has a different UIDVALIDITY the
+     * recorded UIDs mean nothing anymore and the cursor starts over.
+     *
+     * @param uidValidity the UIDVALIDITY of the opened INBOX
+     * @return the UID to resume from
+     */
+    public synchronized long next(long uidValidity) {
+        if (this.uidValidity != uidValidity) {
+            if (this.uidValidity != 0) {
+                log.warn("UIDVALIDITY changed from {} to {}, starting over", this.uidValidity, uidValidity);
+            }
+            this.uidValidity = uidValidity;
+            lastUid = 0;
+        }
+        highestFetched = lastUid;
+        inFlight.clear();
+        return lastUid + 1;
+    }
+
+    /**
+     * Marks an email as fetched. Emails must be marked in UID order.
+     *
+     * @param email the fetched email
+     */
+    public synchronized void fetched(Email email) {
+        if (email.uidValidity() == uidValidity && email.uid() > lastUid) {
+            inFlight.add(email.uid());
+            highestFetched = Math.max(highestFetched, email.uid());
+        }
+    }
+
+    /**
+     * Marks an email as done and advances the cursor as far as nothing before it is still in flight.
+     *
+     * @param email the email that was moved, or needs no work
+     */
+    public void commit(Email email) {
+        commit(List.of(email));
+    }
+
+    /**
+     * Marks emails as done and advances the cursor as far as nothing before them is still in flight.
+     * The cursor file is written once for the whole batch.
+     *
+     * @param emails the emails that were moved, or need no work
+     */
+    public synchronized void commit(Collection<Email> emails) {
+        boolean removed = false;
+        for (Email email : emails) {
+            removed |= email.uidValidity() == uidValidity && inFlight.remove(email.uid());
+        }
+        if (!removed) {
+            return;
+        }
+        long committed = inFlight.isEmpty() ? highestFetched : inFlight.first() - 1;
+        if (committed > lastUid) {
+            lastUid = committed;
+            write();
+        }
+    }
+
+    /**
+     * Returns how many fetched emails have not been committed yet.
+     *
+     * @return the number of emails in flight
+     */
+    public synchronized int inFlight() {
+        return inFlight.size();
+    }
+
+    private void write() {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.writeString(tmp, uidValidity + " " + lastUid);
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.error("Failed to write UID cursor to {}", path, e);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.spinningnoodle.mail.organizer.service.spool;
+
+import com.spinningnoodle.mail.organizer.model.Email;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Durable hand-over between the pipeline stages. Fetching appends compact records of each email (headers and the
+ * truncated body already extracted) to the fetched log; classification appends the category of each fetched
+ * record to the classified log; moving consumes the classified log. Each consumer commits its own offset, so an
+ * IMAP outage does not stop classification of what was fetched, an LLM outage does not stop fetching, and nothing
+ * is downloaded twice after a crash. Segments are deleted once every consumer is past them.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "spool", name = "enabled", havingValue = "true")
+public class EmailSpool {
+    public static final String CLASSIFY = "classify";
+    public static final String MOVE = "move";
+
+    private final Path directory;
+    private final SpoolLog fetched;
+    private final SpoolLog classified;
+
+    /**
+     * Opens the spool, recovering from a crash while appending.
+     *
+     * @param configuration the spool configuration
+     * @throws IOException if there is an error reading the spool
+     */
+    public EmailSpool(SpoolConfiguration configuration) throws IOException {
+        this.directory = Path.of(configuration.getPath());
+        this.fetched = new SpoolLog(directory, "fetched", configuration.getSegmentBytes());
+        this.classified = new SpoolLog(directory, "classified", configuration.getSegmentBytes());
+        log.info("Spool in {} holds {} fetched emails, {} classified, {} still to classify and {} to move",
+                directory.toAbsolutePath(), fetched.end(), classified.end(),
+                fetched.end() - committed(CLASSIFY), classified.end() - committed(MOVE));
+    }
+
+    /**
+     * Appends fetched emails and syncs them to disk; the IMAP message itself is not kept.
+     *
+     * @param emails the emails, parsed as far as the classifier needs
+     * @throws IOException if there is an error writing the spool
+     */
+    public void fetched(List<Email> emails) throws IOException {
+        final var records = new ArrayList<byte[]>(emails.size());
+        for (Email email : emails) {
+            records.add(encode(email));
+        }
+        fetched.append(records);
+        fetched.force();
+    }
+
+    /**
+     * Reads fetched emails from an offset on.
+     *
+     * @param offset the offset of the first email
+     * @param max the most emails to read
+     * @return the emails with their offsets, without IMAP message
+     * @throws IOException if there is an error reading the spool
+     */
+    public List<Spooled<Email>> fetched(long offset, int max) throws IOException {
+        final var emails = new ArrayList<Spooled<Email>>();
+        var next = Math.max(offset, fetched.start());
+        for (byte[] record : fetched.read(next, max)) {
+            emails.add(new Spooled<>(next++, decode(record)));
+        }
+        return emails;
+    }
+
+    /**
+     * Appends the categories of fetched emails and syncs them to disk.
+     *
+     * @param categories the offset of each fetched email with its category
+     * @throws IOException if there is an error writing the spool
+     */
+    public void classified(List<Spooled<String>> categories) throws IOException {
+        final var records = new ArrayList<byte[]>(categories.size());
+        for (Spooled<String> category : categories) {
+            final var bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeLong(category.offset());
+                out.writeUTF(category.value());
+            }
+            records.add(bytes.toByteArray());
+        }
+        classified.append(records);
+        classified.force();
+    }
+
+    /**
+     * Reads classified emails from an offset on, looking each email up in the fetched log.
+     *
+     * @param offset the offset in the classified log
+     * @param max the most emails to read
+     * @return the emails with their category and their offset in the classified log
+     * @throws IOException if there is an error reading the spool
+     */
+    public List<Spooled<Classified>> classified(long offset, int max) throws IOException {
+        final var emails = new ArrayList<Spooled<Classified>>();
+        var next = Math.max(offset, classified.start());
+        for (byte[] record : classified.read(next, max)) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+                final var fetchedOffset = in.readLong();
+                final var category = in.readUTF();
+                emails.add(new Spooled<>(next++, new Classified(fetchedOffset, decode(fetched.read(fetchedOffset)), category)));
+            }
+        }
+        return emails;
+    }
+
+    public long fetchedEnd() {
+        return fetched.end();
+    }
+
+    public long classifiedEnd() {
+        return classified.end();
+    }
+
+    /**
+     * Returns the offset a consumer continues from.
+     *
+     * @param consumer the consumer, {@link #CLASSIFY} or {@link #MOVE}
+     * @return the first offset the consumer has not committed
+     */
+    public long committed(String consumer) {
+        final var path = directory.resolve(consumer + ".offset");
+        try {
+            return Files.exists(path) ? Long.parseLong(Files.readString(path).trim()) : 0;
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Unreadable offset in {}, starting {} over", path, consumer, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Commits the offset of the classification worker.
+     *
+     * @param offset the first fetched offset not yet classified
+     * @throws IOException if there is an error writing the offset
+     */
+    public void commitClassify(long offset) throws IOException {
+        write(CLASSIFY, offset);
+    }
+
+    /**
+     * Commits the offset of the move worker and deletes the segments no worker needs anymore.
+     *
+     * @param offset the first classified offset not yet moved
+     * @param neededFetched the first fetched offset the move worker still needs
+     * @throws IOException if there is an error writing the offset
+     */
+    public void commitMove(long offset, long neededFetched) throws IOException {
+        write(MOVE, offset);
+        classified.deleteBefore(offset);
+        fetched.deleteBefore(Math.min(neededFetched, committed(CLASSIFY)));
+    }
+
+    private void write(String consumer, long offset) throws IOException {
+        final var path = directory.resolve(consumer + ".offset");
+        final var tmp = directory.resolve(consumer + ".offset.tmp");
+        Files.writeString(tmp, Long.toString(offset));
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static byte[] encode(Email email) throws IOException {
+        final var bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(email.uid());
+            out.writeLong(email.uidValidity());
+            out.writeInt(email.messageNumber());
+            writeString(out, email.messageId());
+            writeString(out, email.sender());
+            writeString(out, email.subject());
+            out.writeLong(email.date() == null ? Long.MIN_VALUE : email.date().toEpochSecond(ZoneOffset.UTC));
+            final Map<String, String> headers = email.headers() == null ? Map.of() : email.headers();
+            out.writeInt(headers.size());
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                writeString(out, header.getKey());
+                writeString(out, header.getValue());
+            }
+            writeString(out, email.body());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Email decode(byte[] record) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            final var builder = Email.builder()
+                    .uid(in.readLong())
+                    .uidValidity(in.readLong())
+                    .messageNumber(in.readInt())
+                    .messageId(readString(in))
+                    .sender(readString(in))
+                    .subject(readString(in));
+            final var date = in.readLong();
+            builder.date(date == Long.MIN_VALUE ? null : LocalDateTime.ofEpochSecond(date, 0, ZoneOffset.UTC));
+            final var headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+            final var count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                headers.put(readString(in), readString(in));
+            }
+            return builder.headers(headers)
+                    .body(readString(in))
+                    .fetchedAt(System.nanoTime())
+                    .build();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        // not writeUTF, which is limited to 64KB
+        final var bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final var length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        fetched.close();
+        classified.close();
+    }
+
+    /**
+     * A record of the spool with its offset.
+     *
+     * @param offset the offset of the record in its log
+     * @param value the record
+     */
+    public record Spooled<T>(long offset, T value) {
+    }
+
+    /**
+     * A classified email.
+     *
+     * @param fetchedOffset the offset of the email in the fetched log
+     * @param email the email, without IMAP message
+     * @param category its category
+     */
+    public record Classified(long fetchedOffset, Email email, String category) {
+    }
+}
@@ -0,0 +1,25 @@
+package com.spinningnoodle.mail.organizer.service.spool;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+@ConfigurationProperties(prefix = "spool")
+@Data
+public class SpoolConfiguration {
+    // fetch into a local spool that classification and moves consume on their own
+    private boolean enabled;
+    // directory holding the segment files and committed offsets
+    private String path = "spool";
+    // a new segment is started once the current one is this large; whole segments are deleted once consumed
+    private int segmentBytes = 64 * 1024 * 1024;
+    // records a worker takes from the spool at once
+    private int chunk = 100;
+    // how long an idle worker waits before looking at the spool again
+    private Duration pollInterval = Duration.ofSeconds(1);
+    // how long a worker waits after a failure before trying the same records again
+    private Duration retryInterval = Duration.ofSeconds(10);
+}
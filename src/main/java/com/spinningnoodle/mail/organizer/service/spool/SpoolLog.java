@@ -0,0 +1,291 @@
+package com.spinningnoodle.mail.organizer.service.spool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of byte records, addressed by offset, stored in segment files.
+ * Each segment is a .log file of records framed as length, CRC32C and payload, plus an .idx file with the
+ * position of every record, so any offset is found with one read. Segments are named after their first offset.
+ * On opening, a record torn by a crash is cut off the end of the last segment.
+ */
+@Slf4j
+class SpoolLog implements Closeable {
+    private static final int HEADER = 8;
+
+    private final Path directory;
+    private final String name;
+    private final int segmentBytes;
+    // guarded by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private long end;
+
+    /**
+     * Opens a log, recovering its segments.
+     *
+     * @param directory the spool directory
+     * @param name the name of the log, prefixed to its segment files
+     * @param segmentBytes the size after which a new segment is started
+     * @throws IOException if there is an error reading the segments
+     */
+    SpoolLog(Path directory, String name, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.name = name;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        try (var files = Files.list(directory)) {
+            for (Path file : files.filter(f -> f.getFileName().toString().matches(name + "-\\d{20}\\.log")).toList()) {
+                final var fileName = file.getFileName().toString();
+                final var base = Long.parseLong(fileName.substring(name.length() + 1, fileName.length() - 4));
+                segments.put(base, new Segment(base));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, new Segment(0));
+        }
+        final var last = segments.lastEntry().getValue();
+        last.recover();
+        end = last.base + last.count;
+    }
+
+    /**
+     * Appends records; they are durable once {@link #force()} returns.
+     *
+     * @param records the records
+     * @return the offset of the first record
+     * @throws IOException if there is an error writing
+     */
+    synchronized long append(List<byte[]> records) throws IOException {
+        final var first = end;
+        for (byte[] record : records) {
+            var segment = segments.lastEntry().getValue();
+            if (segment.size() >= segmentBytes) {
+                segment.force();
+                segment = new Segment(end);
+                segments.put(end, segment);
+            }
+            segment.append(record);
+            end++;
+        }
+        return first;
+    }
+
+    /**
+     * Writes appended records and their index entries through to the disk.
+     *
+     * @throws IOException if there is an error syncing
+     */
+    synchronized void force() throws IOException {
+        segments.lastEntry().getValue().force();
+    }
+
+    /**
+     * Reads consecutive records.
+     *
+     * @param offset the offset of the first record
+     * @param max the most records to read
+     * @return the records, fewer than max at the end of the log
+     * @throws IOException if there is an error reading
+     */
+    synchronized List<byte[]> read(long offset, int max) throws IOException {
+        final var records = new ArrayList<byte[]>();
+        for (long o = Math.max(offset, start()); o < end && records.size() < max; o++) {
+            records.add(read(o));
+        }
+        return records;
+    }
+
+    /**
+     * Reads a single record.
+     *
+     * @param offset its offset
+     * @return the record
+     * @throws IOException if there is an error reading or the offset is not in the log
+     */
+    synchronized byte[] read(long offset) throws IOException {
+        final var entry = segments.floorEntry(offset);
+        if (entry == null || offset >= end) {
+            throw new IOException("Offset " + offset + " is not in spool " + name);
+        }
+        return entry.getValue().read(offset - entry.getKey());
+    }
+
+    /**
+     * Returns the offset the next appended record gets.
+     *
+     * @return the end of the log
+     */
+    synchronized long end() {
+        return end;
+    }
+
+    /**
+     * Returns the offset of the oldest record still kept.
+     *
+     * @return the start of the log
+     */
+    synchronized long start() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Deletes the segments whose records all lie before an offset; the last segment is always kept.
+     *
+     * @param offset the first offset still needed
+     */
+    synchronized void deleteBefore(long offset) {
+        while (segments.size() > 1) {
+            final Map.Entry<Long, Segment> next = segments.higherEntry(segments.firstKey());
+            if (next.getKey() > offset) {
+                return;
+            }
+            final var segment = segments.pollFirstEntry().getValue();
+            segment.delete();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    private class Segment {
+        private final long base;
+        private final Path logPath;
+        private final Path indexPath;
+        private final FileChannel data;
+        private final FileChannel index;
+        private long count;
+
+        Segment(long base) throws IOException {
+            this.base = base;
+            final var prefix = String.format("%s-%020d", name, base);
+            this.logPath = directory.resolve(prefix + ".log");
+            this.indexPath = directory.resolve(prefix + ".idx");
+            this.data = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.index = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.count = index.size() / Long.BYTES;
+        }
+
+        /**
+         * Drops index entries whose record is incomplete or corrupt, then log bytes no index entry points to.
+         */
+        void recover() throws IOException {
+            while (count > 0 && !valid(position(count - 1))) {
+                count--;
+            }
+            index.truncate(count * Long.BYTES);
+            final var logEnd = count == 0 ? 0 : position(count - 1) + HEADER + length(position(count - 1));
+            if (data.size() > logEnd) {
+                log.warn("Cutting {} torn bytes off {}", data.size() - logEnd, logPath);
+                data.truncate(logEnd);
+            }
+        }
+
+        long size() throws IOException {
+            return data.size();
+        }
+
+        void append(byte[] record) throws IOException {
+            final var position = data.size();
+            final var crc = new CRC32C();
+            crc.update(record);
+            final var frame = ByteBuffer.allocate(HEADER + record.length)
+                    .putInt(record.length)
+                    .putInt((int) crc.getValue())
+                    .put(record)
+                    .flip();
+            write(data, frame, position);
+            write(index, ByteBuffer.allocate(Long.BYTES).putLong(position).flip(), count * Long.BYTES);
+            count++;
+        }
+
+        byte[] read(long relative) throws IOException {
+            final var position = position(relative);
+            final var record = ByteBuffer.allocate(length(position));
+            readFully(data, record, position + HEADER);
+            return record.array();
+        }
+
+        private long position(long relative) throws IOException {
+            final var buffer = ByteBuffer.allocate(Long.BYTES);
+            readFully(index, buffer, relative * Long.BYTES);
+            return buffer.flip().getLong();
+        }
+
+        private int length(long position) throws IOException {
+            final var buffer = ByteBuffer.allocate(Integer.BYTES);
+            readFully(data, buffer, position);
+            return buffer.flip().getInt();
+        }
+
+        private boolean valid(long position) throws IOException {
+            if (position < 0 || position + HEADER > data.size()) {
+                return false;
+            }
+            final var header = ByteBuffer.allocate(HEADER);
+            readFully(data, header, position);
+            header.flip();
+            final var length = header.getInt();
+            final var expected = header.getInt();
+            if (length < 0 || position + HEADER + length > data.size()) {
+                return false;
+            }
+            final var record = ByteBuffer.allocate(length);
+            readFully(data, record, position + HEADER);
+            final var crc = new CRC32C();
+            crc.update(record.array());
+            return (int) crc.getValue() == expected;
+        }
+
+        void force() throws IOException {
+            data.force(false);
+            index.force(false);
+        }
+
+        void close() throws IOException {
+            data.close();
+            index.close();
+        }
+
+        void delete() {
+            try {
+                close();
+                Files.deleteIfExists(logPath);
+                Files.deleteIfExists(indexPath);
+            } catch (IOException e) {
+                log.warn("Failed to delete consumed segment {}", logPath, e);
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final var read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of spool segment");
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.spinningnoodle.mail.organizer.service.store;
+
+import com.spinningnoodle.mail.organizer.model.Email;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+/**
+ * Tab-separated log of the emails given up on, next to a progress store: when, UIDVALIDITY, UID, Message-ID,
+ * stage and the failure. Dead letters are rare, so each is appended and synced on its own.
+ */
+@Slf4j
+class DeadLetterLog {
+    private final Path path;
+
+    /**
+     * Constructor for the log belonging to a progress store file, e.g. progressStore.deadLetters.tsv.
+     *
+     * @param store the progress store file
+     */
+    DeadLetterLog(Path store) {
+        final var name = store.getFileName().toString();
+        final var dot = name.lastIndexOf('.');
+        this.path = store.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".deadLetters.tsv");
+    }
+
+    synchronized void append(Email email, String stage, Throwable cause) {
+        final var line = String.join("\t", Instant.now().toString(), Long.toString(email.uidValidity()),
+                Long.toString(email.uid()), String.valueOf(email.messageId()), stage, clean(String.valueOf(cause)))
+                + System.lineSeparator();
+        try {
+            Files.writeString(path, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND,
+                    StandardOpenOption.WRITE, StandardOpenOption.DSYNC);
+        } catch (IOException e) {
+            log.error("Failed to record dead letter {} in {}", email.messageId(), path, e);
+        }
+    }
+
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+    }
+}
@@ -1,50 +1,134 @@
 package com.spinningnoodle.mail.organizer.service.store;
 
 import com.spinningnoodle.mail.organizer.model.Email;
-import lombok.SneakyThrows;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
-import java.io.FileWriter;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Progress store keyed by Message-ID.
+ * Processed ids are kept in a hash set for constant time lookups and appended to a log file.
+ * Appends are group committed: they are buffered and written with a single fsync once
+ * {@link ProgressStoreConfiguration#getSyncBatchSize()} records are pending or the sync interval elapses.
+ */
+@Slf4j
 @Component
+@ConditionalOnProperty(name = "progress-store.type", havingValue = "message-id", matchIfMissing = true)
 public class MessageIdProgressStore implements ProgressStore {
-    private final List<String> mailIds;
-
-    public MessageIdProgressStore() throws IOException {
-        Path path = Paths.get("progressStore.txt");
-        if (path.toFile().exists()) {
-            mailIds = new CopyOnWriteArrayList<>(Files.readAllLines(path));
-        } else {
-            mailIds = new CopyOnWriteArrayList<>();
+    private final Set<String> mailIds = ConcurrentHashMap.newKeySet();
+    private final ProgressStoreConfiguration configuration;
+    private final Path path;
+    private final ScheduledExecutorService syncer;
+    private final DeadLetterLog deadLetters;
+    // guarded by this
+    private final StringBuilder pending = new StringBuilder();
+    private int pendingCount;
+    private FileChannel channel;
+
+    /**
+     * Constructor to initialize the store from an existing log file, if any.
+     *
+     * @param configuration the progress store configuration
+     * @throws IOException if there is an error reading or opening the log file
+     */
+    public MessageIdProgressStore(ProgressStoreConfiguration configuration) throws IOException {
+        this.configuration = configuration;
+        this.path = Paths.get(configuration.getPath());
+        this.deadLetters = new DeadLetterLog(path);
+        if (Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        mailIds.add(line);
+                    }
+                }
+            }
+            log.info("Loaded {} processed message ids from {}", mailIds.size(), path);
         }
+        channel = open();
+        long interval = configuration.getSyncInterval().toMillis();
+        syncer = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("progress-store-sync").factory());
+        syncer.scheduleWithFixedDelay(this::sync, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void deadLetter(Email email, String stage, Throwable cause) {
+        process(email);
+        deadLetters.append(email, stage, cause);
+    }
+
+    @Override
+    public long size() {
+        return mailIds.size();
     }
 
     @Override
     public boolean hasBeenProcessed(Email email) {
-        return mailIds.contains(email.messageId());
+        return email.messageId() != null && mailIds.contains(email.messageId());
     }
-    
-    @SneakyThrows
+
     @Override
     public void process(Email email) {
-        mailIds.add(email.messageId());
-        save();
+        final var messageId = email.messageId();
+        if (messageId == null || !mailIds.add(messageId)) {
+            return;
+        }
+        synchronized (this) {
+            pending.append(messageId).append(System.lineSeparator());
+            if (++pendingCount >= configuration.getSyncBatchSize()) {
+                sync();
+            }
+        }
     }
 
-    private void save() {
-
-        try (FileWriter fileWriter = new FileWriter("progressStore.txt")) {
-            for (String id : mailIds) {
-                fileWriter.write(id + System.lineSeparator());
+    /**
+     * Writes all pending records to the log in one go and forces them to disk.
+     */
+    synchronized void sync() {
+        if (pendingCount == 0) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = StandardCharsets.UTF_8.encode(pending.toString());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
             }
+            channel.force(false);
+            pending.setLength(0);
+            pendingCount = 0;
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Failed to write progress store {}", path, e);
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    @PreDestroy
+    public void close() throws IOException {
+        syncer.shutdown();
+        synchronized (this) {
+            sync();
+            channel.close();
         }
     }
 }
@@ -2,8 +2,36 @@ package com.spinningnoodle.mail.organizer.service.store;
 
 import com.spinningnoodle.mail.organizer.model.Email;
 
-public interface ProgressStore {
+import java.io.Closeable;
+import java.util.List;
+
+public interface ProgressStore extends Closeable {
     boolean hasBeenProcessed(Email email);
     void process(Email email);
 
+    /**
+     * Gives up on an email: records it as processed, so later runs skip it, and logs it as a dead letter.
+     *
+     * @param email the email that kept failing
+     * @param stage the pipeline stage it failed in
+     * @param cause the last failure
+     */
+    void deadLetter(Email email, String stage, Throwable cause);
+
+    /**
+     * Returns how many emails have been recorded as processed.
+     *
+     * @return the number of processed emails
+     */
+    long size();
+
+    /**
+     * Returns the emails of a batch that have not been processed yet, preserving their order.
+     *
+     * @param emails the batch to check
+     * @return the unprocessed emails
+     */
+    default List<Email> unprocessed(List<Email> emails) {
+        return emails.stream().filter(email -> !hasBeenProcessed(email)).toList();
+    }
 }
@@ -0,0 +1,21 @@
+package com.spinningnoodle.mail.organizer.service.store;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+@ConfigurationProperties(prefix = "progress-store")
+@Data
+public class ProgressStoreConfiguration {
+    // message-id, or uid to key progress by IMAP UID/UIDVALIDITY
+    private String type = "message-id";
+    // message-id store: log file holding one processed message id per line
+    private String path = "progressStore.txt";
+    // pending records are written and fsync'ed together once this many accumulate...
+    private int syncBatchSize = 100;
+    // ...or when this much time has passed, whichever comes first
+    private Duration syncInterval = Duration.ofSeconds(1);
+}
@@ -0,0 +1,193 @@
+package com.spinningnoodle.mail.organizer.service.store;
+
+import com.spinningnoodle.mail.organizer.model.Email;
+import com.spinningnoodle.mail.organizer.service.email.ImapConfiguration;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Progress store keyed by IMAP UID.
+ * Unlike message numbers, UIDs do not shift when mail is moved out of the INBOX.
+ * Processed UIDs are kept in one compressed bitmap per UIDVALIDITY and saved to a memory-mapped file.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "progress-store.type", havingValue = "uid")
+public class UidProgressStore implements ProgressStore {
+    private final ProgressStoreConfiguration configuration;
+    private final Path path;
+    private final Map<Long, RoaringBitmap> processed = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService syncer;
+    private final DeadLetterLog deadLetters;
+    // guarded by this
+    private int pendingCount;
+
+    /**
+     * Constructor to initialize the store from the user's bitmap file, if any.
+     *
+     * @param imapConfiguration the IMAP configuration, whose username names the store
+     * @param configuration the progress store configuration
+     * @throws IOException if there is an error reading the store file
+     */
+    public UidProgressStore(ImapConfiguration imapConfiguration, ProgressStoreConfiguration configuration) throws IOException {
+        this.configuration = configuration;
+        this.path = Path.of(imapConfiguration.getUsername() + "._uidProgressStore.bin");
+        this.deadLetters = new DeadLetterLog(path);
+        readStore();
+        long interval = configuration.getSyncInterval().toMillis();
+        syncer = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("uid-progress-store-sync").factory());
+        syncer.scheduleWithFixedDelay(this::sync, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Layout: bitmap count, then for every bitmap its UIDVALIDITY, serialized size and portable serialization.
+     */
+    private void readStore() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                long uidValidity = buffer.getLong();
+                int size = buffer.getInt();
+                RoaringBitmap bitmap = new RoaringBitmap();
+                bitmap.deserialize(buffer.slice(buffer.position(), size));
+                buffer.position(buffer.position() + size);
+                processed.put(uidValidity, bitmap);
+            }
+        }
+        log.info("Loaded processed uids for {} uid validities from {}", processed.size(), path);
+    }
+
+    @Override
+    public boolean hasBeenProcessed(Email email) {
+        final var bitmap = processed.get(email.uidValidity());
+        if (bitmap == null || email.uid() <= 0) {
+            return false;
+        }
+        synchronized (bitmap) {
+            return bitmap.contains((int) email.uid());
+        }
+    }
+
+    /**
+     * Filters a batch with a single bitmap difference per UIDVALIDITY instead of one lookup per message.
+     */
+    @Override
+    public List<Email> unprocessed(List<Email> emails) {
+        final var byValidity = emails.stream().collect(Collectors.groupingBy(Email::uidValidity));
+        final var remaining = new HashMap<Long, RoaringBitmap>();
+        byValidity.forEach((uidValidity, batch) -> {
+            RoaringBitmap candidates = new RoaringBitmap();
+            batch.forEach(email -> candidates.add((int) email.uid()));
+            final var bitmap = processed.get(uidValidity);
+            if (bitmap != null) {
+                synchronized (bitmap) {
+                    candidates.andNot(bitmap);
+                }
+            }
+            remaining.put(uidValidity, candidates);
+        });
+        return emails.stream()
+                .filter(email -> email.uid() <= 0 || remaining.get(email.uidValidity()).contains((int) email.uid()))
+                .toList();
+    }
+
+    @Override
+    public void process(Email email) {
+        if (email.uid() <= 0) {
+            return;
+        }
+        final var bitmap = processed.computeIfAbsent(email.uidValidity(), v -> new RoaringBitmap());
+        synchronized (bitmap) {
+            bitmap.add((int) email.uid());
+        }
+        synchronized (this) {
+            if (++pendingCount >= configuration.getSyncBatchSize()) {
+                sync();
+            }
+        }
+    }
+
+    @Override
+    public void deadLetter(Email email, String stage, Throwable cause) {
+        process(email);
+        deadLetters.append(email, stage, cause);
+    }
+
+    @Override
+    public long size() {
+        return processed.values().stream().mapToLong(bitmap -> {
+            synchronized (bitmap) {
+                return bitmap.getLongCardinality();
+            }
+        }).sum();
+    }
+
+    /**
+     * Writes all bitmaps to a memory-mapped temporary file and atomically swaps it in.
+     */
+    synchronized void sync() {
+        if (pendingCount == 0) {
+            return;
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            final var snapshot = new LinkedHashMap<Long, RoaringBitmap>();
+            processed.forEach((uidValidity, bitmap) -> {
+                synchronized (bitmap) {
+                    bitmap.runOptimize();
+                    snapshot.put(uidValidity, bitmap.clone());
+                }
+            });
+            long size = Integer.BYTES;
+            for (RoaringBitmap bitmap : snapshot.values()) {
+                size += Long.BYTES + Integer.BYTES + bitmap.serializedSizeInBytes();
+            }
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putInt(snapshot.size());
+                for (Map.Entry<Long, RoaringBitmap> entry : snapshot.entrySet()) {
+                    buffer.putLong(entry.getKey());
+                    buffer.putInt(entry.getValue().serializedSizeInBytes());
+                    entry.getValue().serialize(buffer);
+                }
+                buffer.force();
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            pendingCount = 0;
+        } catch (IOException e) {
+            log.error("Failed to write uid progress store {}", path, e);
+        }
+    }
+
+    @Override
+    @PreDestroy
+    public void close() {
+        syncer.shutdown();
+        sync();
+    }
+}
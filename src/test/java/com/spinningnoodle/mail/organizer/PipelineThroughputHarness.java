@@ -0,0 +1,204 @@
+package com.spinningnoodle.mail.organizer;
+
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.spinningnoodle.mail.organizer.service.OrganizerService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs the whole pipeline, retrieve to move, against an embedded IMAP server seeded with generated mail and a
+ * simulated chat model, and prints throughput, per-message latency, peak heap and IMAP commands issued.
+ * Excluded from the regular build; run it with {@code ./gradlew harness}, tuning it with
+ * {@code -Pharness.messages}, {@code -Pharness.latency} and {@code -Pharness.jitter} (milliseconds) and
+ * {@code -Pharness.failure-rate}.
+ */
+@Tag("harness")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE)
+class PipelineThroughputHarness {
+	private static final int MESSAGES = Integer.getInteger("harness.messages", 500);
+	private static final long LATENCY = Long.getLong("harness.latency", 20);
+	private static final long JITTER = Long.getLong("harness.jitter", 10);
+	private static final double FAILURE_RATE = Double.parseDouble(System.getProperty("harness.failure-rate", "0.01"));
+	private static final String USER = "harness";
+	private static final Path WORK = temporaryDirectory();
+
+	@RegisterExtension
+	static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.IMAP.dynamicPort())
+			.withPerMethodLifecycle(false);
+
+	@Autowired
+	private OrganizerService organizerService;
+
+	@Autowired
+	private MeterRegistry registry;
+
+	@DynamicPropertySource
+	static void properties(DynamicPropertyRegistry properties) {
+		properties.add("imap.host", () -> "localhost");
+		properties.add("imap.port", () -> greenMail.getImap().getPort());
+		properties.add("imap.ssl", () -> false);
+		properties.add("imap.username", () -> USER);
+		properties.add("imap.password", () -> USER);
+		properties.add("imap.trace", () -> true);
+		properties.add("imap.cursor-path", () -> WORK.resolve("uidCursor.txt").toString());
+		properties.add("progress-store.path", () -> WORK.resolve("progressStore.txt").toString());
+		properties.add("classifier-configuration.cache.enabled", () -> false);
+		properties.add("classifier-configuration.local.enabled", () -> false);
+		properties.add("pipeline.auto-start", () -> false);
+		properties.add("pipeline.summary-interval", () -> "5s");
+	}
+
+	@BeforeAll
+	static void seed() throws Exception {
+		GreenMailUser user = greenMail.setUser(USER + "@localhost", USER, USER);
+		Session session = Session.getInstance(new Properties());
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < MESSAGES; i++) {
+			MimeMessage message = new MimeMessage(session);
+			message.setSentDate(new Date());
+			switch (i % 4) {
+				case 0 -> {
+					message.setFrom(new InternetAddress("deals@shop" + random.nextInt(20) + ".example.com"));
+					message.setSubject("Up to " + (10 + random.nextInt(80)) + "% off this weekend");
+					message.setContent("<html><body><table><tr><td><b>Sale</b> price drops on everything "
+							+ "<a href=\"https://shop.example.com\">Shop now</a></td></tr></table></body></html>",
+							"text/html; charset=utf-8");
+				}
+				case 1 -> {
+					message.setFrom(new InternetAddress("orders@store.example.com"));
+					message.setSubject("Your order #" + random.nextInt(1_000_000) + " has shipped");
+					message.setText("Thank you for your purchase. Your order number is " + i + ".", "utf-8");
+				}
+				case 2 -> {
+					message.setFrom(new InternetAddress("news@weekly.example.org"));
+					message.setSubject("This week in gardening, issue " + i);
+					message.setText("Articles and updates about gardening. ".repeat(50), "utf-8");
+				}
+				default -> {
+					message.setFrom(new InternetAddress("bulk@junk.example.net"));
+					message.setSubject("You have won");
+					message.setHeader("Precedence", "junk");
+					message.setText("Claim your prize now.", "utf-8");
+				}
+			}
+			user.deliver(message);
+		}
+	}
+
+	@Test
+	void throughput() throws Exception {
+		final List<MemoryPoolMXBean> heap = ManagementFactory.getMemoryPoolMXBeans().stream()
+				.filter(pool -> pool.getType() == MemoryType.HEAP)
+				.toList();
+		heap.forEach(MemoryPoolMXBean::resetPeakUsage);
+		final long start = System.nanoTime();
+
+		organizerService.run();
+
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		final double committed = registry.get("organizer.messages").tag("stage", "move").counter().count();
+		final ValueAtPercentile[] percentiles = registry.get("organizer.message.latency").timer()
+				.takeSnapshot().percentileValues();
+		final long peakHeap = heap.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+		final double commands = registry.find("organizer.imap.commands").counters().stream()
+				.mapToDouble(Counter::count)
+				.sum();
+		System.out.printf("%d messages, model latency %dms +/- %dms, failure rate %.3f%n",
+				MESSAGES, LATENCY, JITTER, FAILURE_RATE);
+		System.out.printf("throughput %.1f msg/s over %.1fs%n", committed / seconds, seconds);
+		for (ValueAtPercentile percentile : percentiles) {
+			System.out.printf("p%.0f latency %.0fms%n", percentile.percentile() * 100,
+					percentile.value(TimeUnit.MILLISECONDS));
+		}
+		System.out.printf("peak heap %dMB, %.0f IMAP commands (%.2f per message)%n",
+				peakHeap / (1024 * 1024), commands, commands / MESSAGES);
+
+		assertThat(committed).isEqualTo(MESSAGES);
+	}
+
+	private static Path temporaryDirectory() {
+		try {
+			return Files.createTempDirectory("organizer-harness");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@TestConfiguration
+	static class SimulatedModel {
+
+		@Bean
+		@Primary
+		ChatModel simulatedChatModel() {
+			return new SimulatedChatModel();
+		}
+	}
+
+	/**
+	 * Answers after a configurable latency with jitter, fails at a configurable rate, and picks the category
+	 * from a few words of the email.
+	 */
+	static class SimulatedChatModel implements ChatModel {
+
+		@Override
+		public ChatResponse call(Prompt prompt) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long latency = Math.max(0, LATENCY + Math.round(random.nextGaussian() * JITTER));
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+			if (random.nextDouble() < FAILURE_RATE) {
+				throw new IllegalStateException("Simulated model failure");
+			}
+			// the email is the last message, after the instructions
+			String email = prompt.getInstructions().get(prompt.getInstructions().size() - 1).getContent()
+					.toLowerCase(Locale.ROOT);
+			String category = email.contains("% off") ? "Flyer"
+					: email.contains("order #") ? "Order"
+					: email.contains("issue") ? "Newsletter"
+					: "Other";
+			return new ChatResponse(List.of(new Generation(new AssistantMessage("category:" + category))));
+		}
+	}
+}
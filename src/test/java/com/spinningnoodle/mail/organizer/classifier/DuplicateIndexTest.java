@@ -0,0 +1,79 @@
+package com.spinningnoodle.mail.organizer.classifier;
+
+import com.spinningnoodle.mail.organizer.model.ClassifierConfiguration;
+import com.spinningnoodle.mail.organizer.model.Email;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DuplicateIndexTest {
+	private static final String CAMPAIGN = "Spring sale starts today with great discounts on shoes jackets shirts "
+			+ "trousers hats scarves gloves socks belts bags watches sunglasses and much more for the whole family "
+			+ "visit our stores or shop online before the offer ends next week";
+
+	private final DuplicateIndex index = new DuplicateIndex(new ClassifierConfiguration(), new SimpleMeterRegistry());
+
+	private static Email email(String messageId, String subject, String body, Map<String, String> headers) {
+		final var map = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		map.putAll(headers);
+		return Email.builder().messageId(messageId).subject(subject).body(body).headers(map).build();
+	}
+
+	@Test
+	void threadRootIsFirstReferenceThenInReplyToThenOwnId() {
+		assertThat(DuplicateIndex.threadRoot(email("<c@x>", null, null,
+				Map.of("References", "<a@x> <b@x>", "In-Reply-To", "<b@x>")))).isEqualTo("<a@x>");
+		assertThat(DuplicateIndex.threadRoot(email("<c@x>", null, null, Map.of("In-Reply-To", "<b@x>"))))
+				.isEqualTo("<b@x>");
+		assertThat(DuplicateIndex.threadRoot(email(" <c@x> ", null, null, Map.of()))).isEqualTo("<c@x>");
+		assertThat(DuplicateIndex.threadRoot(email(null, null, null, Map.of("References", "no id here")))).isNull();
+	}
+
+	@Test
+	void keysUseTheBracketedListId() {
+		assertThat(index.keys(email("<a@x>", null, null, Map.of("List-Id", "Some <Name> List <Dev.Example.COM>"))))
+				.containsExactly("thread:<a@x>", "list:dev.example.com");
+		assertThat(index.keys(email("<a@x>", null, null, Map.of("List-Id", " Dev.Example.com "))))
+				.containsExactly("thread:<a@x>", "list:dev.example.com");
+		assertThat(index.keys(email("<a@x>", null, null, Map.of("List-Id", " ")))).containsExactly("thread:<a@x>");
+	}
+
+	@Test
+	void similarCopiesAreFoundLikeSameGroupSays() {
+		final var original = email("<original@x>", "Spring sale", CAMPAIGN, Map.of());
+		index.record(original, "Flyer");
+		assertThat(index.lookup(email("<copy@x>", "Spring sale", CAMPAIGN, Map.of()))).contains("Flyer");
+		final var words = CAMPAIGN.split(" ");
+		for (int i = 0; i < words.length; i++) {
+			final var changed = words.clone();
+			changed[i] = "replaced" + i;
+			final var variant = email("<variant" + i + "@x>", "Spring sale", String.join(" ", changed), Map.of());
+			final var distance = Long.bitCount(index.simHash(original) ^ index.simHash(variant));
+			assertThat(index.lookup(variant).isPresent())
+					.as("variant %d at distance %d", i, distance)
+					.isEqualTo(index.sameGroup(original, variant))
+					.isEqualTo(distance <= 3);
+		}
+		assertThat(index.lookup(email("<other@x>", "Quarterly report", "Revenue grew in every region this quarter "
+				+ "while costs stayed flat so the board approved the budget for hiring two engineers and one designer "
+				+ "please review the attached figures before our meeting on Thursday", Map.of()))).isEmpty();
+	}
+
+	@Test
+	void shortTextIsNotCompared() {
+		assertThat(index.simHash(email("<a@x>", "Hi", "see you soon", Map.of()))).isZero();
+	}
+
+	@Test
+	void rejectsDistancesTheBandsCannotFind() {
+		final var configuration = new ClassifierConfiguration();
+		configuration.getDedup().setMaxDistance(5);
+		assertThatThrownBy(() -> new DuplicateIndex(configuration, new SimpleMeterRegistry()))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+}
@@ -0,0 +1,61 @@
+package com.spinningnoodle.mail.organizer.model;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.TextNode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HtmlTextExtractorTest {
+
+	/**
+	 * The Jsoup DOM path the extractor replaced, minus the head, which the extractor skips.
+	 */
+	private static String jsoup(String html) {
+		Document doc = Jsoup.parse(html);
+		doc.head().remove();
+		return doc.nodeStream().filter(n -> n instanceof TextNode)
+				.map(n -> ((TextNode) n).text())
+				.collect(StringBuilder::new, StringBuilder::append, StringBuilder::append).toString();
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {
+			"Hello   world\n\nplain text",
+			"  leading whitespace",
+			"<p>Hello <b>bold</b> &amp; <i>italic</i></p>\n<p>Second&nbsp;para</p>",
+			"<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>Sale!</title>\n<style>p{color:red}</style>\n</head>\n"
+					+ "<body>\n<div class=\"x\">Up to 50% off</div>\n<script>var a = '<b>';</script>\n"
+					+ "<a href='http://x?a=1&b=2' title=\"a>b\">Shop now</a>\n</body>\n</html>\n",
+			"<table><tr><td>Order</td><td>#12345</td></tr>\n<tr><td>Total</td><td>&#36;19.99 &#x20AC;</td></tr></table>",
+			"<div>a<!-- comment <b>x</b> -->b</div><!---->c<!-->d",
+			"<p>5 < 6 and 7 > 3</p> &copy; 2024 &unknown; &amp",
+			"<ul>\n  <li>One</li>\n  <li>Two</li>\n</ul>",
+			"<textarea>a &lt; b <i>x</i></textarea><br/>after",
+			"<title>implicit head</title><p>body</p>",
+			"<html><body><p>Zero&#8203;width</p></body></html>",
+			"<?xml version=\"1.0\"?><p>x</p></ >y",
+			"<SCRIPT type=text/javascript>if (a < b) {}</SCRIPT>Visible<STYLE>.a{}</STYLE>",
+			"<div>\r\n  a \r\n</div>  <br><img src=x>  text &nbsp;&nbsp;x&nbsp; y",
+	})
+	void matchesJsoup(String html) {
+		assertThat(HtmlTextExtractor.extract(html)).isEqualTo(jsoup(html));
+	}
+
+	@Test
+	void skipsHead() {
+		assertThat(HtmlTextExtractor.extract("<head>\n<title>Title</title>\n</head><body>Body</body>"))
+				.isEqualTo("Body");
+	}
+
+	@Test
+	void stopsAtCharacterBudget() throws IOException {
+		assertThat(HtmlTextExtractor.extract(new StringReader("<p>abcdef ghijkl</p>"), 5)).isEqualTo("abcde");
+	}
+}
@@ -0,0 +1,93 @@
+package com.spinningnoodle.mail.organizer.service.archive;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MboxSplitterTest {
+	// the smallest window the splitter maps
+	private static final int WINDOW = 64 * 1024;
+
+	@TempDir
+	Path dir;
+
+	private record Split(List<String> contents, List<String> locations, int mappings) {
+	}
+
+	private Split split(String mbox) throws IOException {
+		final var path = dir.resolve("test.mbox");
+		Files.writeString(path, mbox, StandardCharsets.US_ASCII);
+		final var splitter = new MboxSplitter(path, WINDOW);
+		try {
+			final var messages = Flux.<RawMessage>generate(splitter::next).collectList().block();
+			return new Split(
+					messages.stream().map(message -> StandardCharsets.US_ASCII.decode(message.content().duplicate()).toString()).toList(),
+					messages.stream().map(RawMessage::location).toList(),
+					splitter.mappings());
+		} finally {
+			splitter.close();
+		}
+	}
+
+	private static String message(String subject, String body) {
+		return "From sender@example.com Mon Jan  1 00:00:00 2024\nSubject: " + subject + "\n\n" + body + "\n";
+	}
+
+	@Test
+	void reusesOneMappingForSeveralMessages() throws IOException {
+		final var split = split(message("one", "first") + message("two", ">From here on\nsecond") + message("three", "third"));
+
+		assertThat(split.contents()).containsExactly(
+				"Subject: one\n\nfirst\n",
+				"Subject: two\n\n>From here on\nsecond\n",
+				"Subject: three\n\nthird\n");
+		assertThat(split.mappings()).isEqualTo(1);
+	}
+
+	@Test
+	void findsSeparatorStraddlingTheWindowEdge() throws IOException {
+		final var first = message("one", "x");
+		// the next "From " line starts two bytes before the end of the first window
+		final var padded = message("one", "x".repeat(WINDOW - 2 - first.length() + 1));
+		assertThat(padded.length()).isEqualTo(WINDOW - 2);
+		final var split = split(padded + message("two", "second") + message("three", "third"));
+
+		assertThat(split.contents()).containsExactly(
+				padded.substring(padded.indexOf('\n') + 1),
+				"Subject: two\n\nsecond\n",
+				"Subject: three\n\nthird\n");
+		assertThat(split.locations().get(1)).endsWith(":" + (WINDOW - 2));
+		// the first window is mapped again larger, and then holds the rest
+		assertThat(split.mappings()).isEqualTo(2);
+	}
+
+	@Test
+	void growsTheMappingForMessagesLargerThanTheWindow() throws IOException {
+		final var body = "y".repeat(WINDOW * 2 + 100);
+		final var split = split(message("large", body) + message("small", "after"));
+
+		assertThat(split.contents()).containsExactly("Subject: large\n\n" + body + "\n", "Subject: small\n\nafter\n");
+		// the window, twice the window, then the whole file
+		assertThat(split.mappings()).isEqualTo(3);
+	}
+
+	@Test
+	void keepsTheLastMessageWithoutTrailingNewline() throws IOException {
+		final var split = split(message("one", "first") + "From sender@example.com\nSubject: two\n\nno newline");
+
+		assertThat(split.contents()).containsExactly("Subject: one\n\nfirst\n", "Subject: two\n\nno newline");
+	}
+
+	@Test
+	void splitsNothingFromAnEmptyFile() throws IOException {
+		assertThat(split("").contents()).isEmpty();
+	}
+}
@@ -0,0 +1,95 @@
+package com.spinningnoodle.mail.organizer.service.spool;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpoolLogTest {
+	// length and CRC32C in front of every record
+	private static final int HEADER = 8;
+
+	@TempDir
+	Path dir;
+
+	private static byte[] record(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static List<String> strings(List<byte[]> records) {
+		return records.stream().map(record -> new String(record, StandardCharsets.UTF_8)).toList();
+	}
+
+	@Test
+	void readsWhatWasAppendedAfterReopening() throws IOException {
+		try (var spool = new SpoolLog(dir, "fetched", 1 << 20)) {
+			assertThat(spool.append(List.of(record("a"), record("b")))).isZero();
+			assertThat(spool.append(List.of(record("c")))).isEqualTo(2);
+			spool.force();
+		}
+		try (var spool = new SpoolLog(dir, "fetched", 1 << 20)) {
+			assertThat(spool.end()).isEqualTo(3);
+			assertThat(strings(spool.read(1, 10))).containsExactly("b", "c");
+		}
+	}
+
+	@Test
+	void recoversFromATornTail() throws IOException {
+		try (var spool = new SpoolLog(dir, "fetched", 1 << 20)) {
+			spool.append(List.of(record("one"), record("two"), record("three"), record("four"), record("five")));
+			spool.force();
+		}
+		final var log = dir.resolve(String.format("fetched-%020d.log", 0));
+		final var idx = dir.resolve(String.format("fetched-%020d.idx", 0));
+		// records are laid out back to back: "one" at 0, "two" at 11, "three" at 22, "four" at 35, "five" at 47
+		final var four = 3 * HEADER + "one".length() + "two".length() + "three".length();
+		final var five = four + HEADER + "four".length();
+		try (var channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+			// "five" is cut in the middle of its payload
+			channel.truncate(five + HEADER + 2);
+			// "four" keeps its length and bytes, but its CRC no longer matches
+			channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0xBAD).flip(), four + Integer.BYTES);
+		}
+		// an index entry for a sixth record was only partly written
+		Files.write(idx, new byte[]{0, 0, 0}, StandardOpenOption.APPEND);
+
+		try (var spool = new SpoolLog(dir, "fetched", 1 << 20)) {
+			assertThat(spool.end()).isEqualTo(3);
+			assertThat(strings(spool.read(0, 10))).containsExactly("one", "two", "three");
+			assertThat(Files.size(log)).isEqualTo(four);
+			assertThat(Files.size(idx)).isEqualTo(3 * Long.BYTES);
+
+			assertThat(spool.append(List.of(record("four again")))).isEqualTo(3);
+			spool.force();
+			assertThat(strings(spool.read(2, 10))).containsExactly("three", "four again");
+		}
+		try (var spool = new SpoolLog(dir, "fetched", 1 << 20)) {
+			assertThat(spool.end()).isEqualTo(4);
+			assertThat(strings(spool.read(0, 10))).containsExactly("one", "two", "three", "four again");
+		}
+	}
+
+	@Test
+	void startsNewSegmentsAndDeletesConsumedOnes() throws IOException {
+		try (var spool = new SpoolLog(dir, "fetched", HEADER + 1)) {
+			spool.append(List.of(record("a"), record("b"), record("c")));
+			spool.force();
+			spool.deleteBefore(2);
+			assertThat(spool.start()).isEqualTo(2);
+			assertThat(strings(spool.read(0, 10))).containsExactly("c");
+		}
+		try (var spool = new SpoolLog(dir, "fetched", HEADER + 1)) {
+			assertThat(spool.end()).isEqualTo(3);
+			assertThat(strings(spool.read(2, 1))).containsExactly("c");
+		}
+	}
+}